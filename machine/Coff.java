@@ -77,12 +77,24 @@ public class Coff {
 
 	    int offset = headerLength + optionalHeaderLength;
 
+	    // read all the section headers at once
+	    byte[] sectionHeaders =
+		new byte[numSections*CoffSection.headerLength];
+
+	    if (offset+sectionHeaders.length > file.length()) {
+		Lib.debug(dbgCoff, "\tsection headers truncated");
+		throw new EOFException();
+	    }
+
+	    Lib.strictReadFile(file, offset, sectionHeaders, 0,
+			       sectionHeaders.length);
+
 	    sections = new CoffSection[numSections];
 	    for (int s=0; s<numSections; s++) {
-		int sectionEntryOffset = offset + s*CoffSection.headerLength;
+		int sectionEntryOffset = s*CoffSection.headerLength;
 		try {
-		    sections[s] =
-			new CoffSection(file, this, sectionEntryOffset);
+		    sections[s] = new CoffSection(file, this, sectionHeaders,
+						  sectionEntryOffset);
 		}
 		catch (EOFException e) {
 		    Lib.debug(dbgCoff, "\terror loading section " + s);
@@ -47,24 +47,34 @@ public class CoffSection {
      */
     public CoffSection(OpenFile file, Coff coff,
 		       int headerOffset) throws EOFException {
+	this(file, coff, readHeader(file, headerOffset), 0);
+    }
+
+    /**
+     * Load a COFF section from an executable, using a section header that
+     * has already been read into memory.
+     *
+     * @param	file		the file containing the executable.
+     * @param	coff		the COFF object to which this section belongs.
+     * @param	buf		the buffer containing the section header.
+     * @param	bufOffset	the offset of the section header in
+     *				<tt>buf</tt>.
+     *
+     * @exception	EOFException	if an error occurs.
+     */
+    CoffSection(OpenFile file, Coff coff, byte[] buf,
+		int bufOffset) throws EOFException {
 	this.file = file;
 	this.coff = coff;
 
-	Lib.assertTrue(headerOffset >= 0);
-	if (headerOffset+headerLength > file.length()) {
-	    Lib.debug(dbgCoffSection, "\tsection header truncated");
-	    throw new EOFException();
-	}
+	Lib.assertTrue(bufOffset >= 0 && bufOffset+headerLength <= buf.length);
 
-	byte[] buf = new byte[headerLength];
-	Lib.strictReadFile(file, headerOffset, buf, 0, headerLength);
-
-	name = Lib.bytesToString(buf, 0, 8);
-	int vaddr = Lib.bytesToInt(buf, 12);
-	size = Lib.bytesToInt(buf, 16);
-	contentOffset = Lib.bytesToInt(buf, 20);
-	int numRelocations = Lib.bytesToUnsignedShort(buf, 32);
-	int flags = Lib.bytesToInt(buf, 36);
+	name = Lib.bytesToString(buf, bufOffset, 8);
+	int vaddr = Lib.bytesToInt(buf, bufOffset+12);
+	size = Lib.bytesToInt(buf, bufOffset+16);
+	contentOffset = Lib.bytesToInt(buf, bufOffset+20);
+	int numRelocations = Lib.bytesToUnsignedShort(buf, bufOffset+32);
+	int flags = Lib.bytesToInt(buf, bufOffset+36);
 
 	if (numRelocations != 0) {
 	    Lib.debug(dbgCoffSection, "\tsection needs relocation");
@@ -110,6 +120,20 @@ public class CoffSection {
 	firstVPN = vaddr / Processor.pageSize;
     }
 
+    private static byte[] readHeader(OpenFile file,
+				     int headerOffset) throws EOFException {
+	Lib.assertTrue(headerOffset >= 0);
+	if (headerOffset+headerLength > file.length()) {
+	    Lib.debug(dbgCoffSection, "\tsection header truncated");
+	    throw new EOFException();
+	}
+
+	byte[] buf = new byte[headerLength];
+	Lib.strictReadFile(file, headerOffset, buf, 0, headerLength);
+
+	return buf;
+    }
+
     /**
      * Return the COFF object used to load this executable instance.
      *
@@ -174,32 +198,48 @@ public class CoffSection {
      * @param	ppn	the physical page to load into.
      */
     public void loadPage(int spn, int ppn) {
+	loadPages(spn, new int[] { ppn });
+    }
+
+    /**
+     * Load consecutive pages from this segment into physical memory. All the
+     * initialized data in the run is fetched from the executable with a
+     * single read, however many pages it spans.
+     *
+     * @param	spn	the first page number within this segment.
+     * @param	ppns	the physical pages to load into, one for each page of
+     *			the run.
+     */
+    public void loadPages(int spn, int[] ppns) {
 	Lib.assertTrue(file != null);
 
-	Lib.assertTrue(spn>=0 && spn<numPages);
-	Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
+	Lib.assertTrue(spn>=0 && spn+ppns.length<=numPages);
 
 	int pageSize = Processor.pageSize;
 	byte[] memory = Machine.processor().getMemory();
-	int paddr = ppn*pageSize;
 	int faddr = contentOffset + spn*pageSize;
 	int initlen;
 
 	if (!initialized)
 	    initlen = 0;
-	else if (spn == numPages-1)
-	    /** initlen = size % pageSize; 
-	     *  Bug identified by Steven Schlansker 3/20/08
-	     *  Bug fix by Michael Rauser
-	     */
-	    initlen = (size==pageSize) ? pageSize : (size%pageSize);
 	else
-	    initlen = pageSize;
+	    initlen = Math.min(size - spn*pageSize, ppns.length*pageSize);
 
+	byte[] buf = new byte[Math.max(initlen, 0)];
 	if (initlen > 0)
-	    Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+	    Lib.strictReadFile(file, faddr, buf, 0, initlen);
+
+	for (int i=0; i<ppns.length; i++) {
+	    int ppn = ppns[i];
+	    Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
 
-	Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+	    int paddr = ppn*pageSize;
+	    int pagelen = Math.max(0, Math.min(initlen - i*pageSize, pageSize));
+
+	    if (pagelen > 0)
+		System.arraycopy(buf, i*pageSize, memory, paddr, pagelen);
+	    Arrays.fill(memory, paddr+pagelen, paddr+pageSize, (byte) 0);
+	}
     }
 
     /** The COFF object to which this section belongs. */
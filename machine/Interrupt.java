@@ -6,6 +6,7 @@ import nachos.security.*;
 
 import java.util.TreeSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.SortedSet;
 
 /**
@@ -149,10 +150,33 @@ public final class Interrupt {
 	    System.out.println("== Tick " + stats.totalTicks + " ==");
 
 	enabled = false;
+	if (anyPosted)
+	    schedulePosted();
 	checkIfDue();
 	enabled = true;
     }
 
+    private void post(String type, Runnable handler) {
+	synchronized (posted) {
+	    posted.add(new PostedInterrupt(type, handler));
+	    anyPosted = true;
+	}
+    }
+
+    private void schedulePosted() {
+	synchronized (posted) {
+	    for (PostedInterrupt p : posted) {
+		Lib.debug(dbgInt, "Posted " + p.type + " interrupt handler");
+
+		pending.add(new PendingInterrupt(privilege.stats.totalTicks,
+						 p.type, p.handler));
+	    }
+
+	    posted.clear();
+	    anyPosted = false;
+	}
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -232,8 +256,23 @@ public final class Interrupt {
 	private long id;
     }
     
+    private static class PostedInterrupt {
+	PostedInterrupt(String type, Runnable handler) {
+	    this.type = type;
+	    this.handler = handler;
+	}
+
+	String type;
+	Runnable handler;
+    }
+    
     private long numPendingInterruptsCreated = 0;
 
+    /** Interrupts raised by host threads, waiting for the next tick. */
+    private LinkedList<PostedInterrupt> posted =
+	new LinkedList<PostedInterrupt>();
+    private volatile boolean anyPosted = false;
+
     private Privilege privilege;
 
     private boolean enabled;
@@ -246,6 +285,10 @@ public final class Interrupt {
 	    Interrupt.this.schedule(when, type, handler);
 	}
 
+	public void post(String type, Runnable handler) {
+	    Interrupt.this.post(type, handler);
+	}
+
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
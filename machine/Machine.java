@@ -95,6 +95,10 @@ public final class Machine {
      * Print stats, and terminate Nachos.
      */
     public static void halt() {
+	// console output goes out before the halting banner
+	if (console instanceof StandardConsole)
+	    ((StandardConsole) console).flush();
+
 	System.out.print("Machine halting!\n\n");
 	stats.print();
 	terminate();
@@ -65,7 +65,9 @@ public class NetworkLink {
      * <p>
      * <tt>nachos.conf</tt> specifies the reliability of the network. The
      * reliability, between 0 and 1, is the probability that any particular
-     * packet will not get dropped by the network.
+     * packet will not get dropped by the network. If
+     * <tt>NetworkLink.pooledBuffers</tt> is set, packets are received into
+     * pooled buffers, which the kernel must <tt>recycle()</tt>.
      *
      * @param	privilege      	encapsulates privileged access to the Nachos
      * 				machine.
@@ -87,6 +89,8 @@ public class NetworkLink {
 	reliability = Config.getDouble("NetworkLink.reliability");
 	Lib.assertTrue(reliability > 0 && reliability <= 1.0);
 
+	pooledBuffers = Config.getBoolean("NetworkLink.pooledBuffers", false);
+
 	socket = null;
 
 	for (linkAddress=0;linkAddress<Packet.linkAddressLimit;linkAddress++) {
@@ -113,8 +117,10 @@ public class NetworkLink {
 	sendInterrupt = new Runnable() {
 		public void run() { sendInterrupt(); }
 	    };		
-	
-	scheduleReceiveInterrupt();
+
+	arrivalInterrupt = new Runnable() {
+		public void run() { scheduleAlignedReceiveInterrupt(); }
+	    };
 
 	Thread receiveThread = new Thread(new Runnable() {
 		public void run() { receiveLoop(); }
@@ -160,13 +166,28 @@ public class NetworkLink {
 				     receiveInterrupt);
     }
 
+    /**
+     * Schedule a receive interrupt for the next multiple of
+     * <tt>Stats.NetworkTime</tt> ticks, the times at which a polling link
+     * would look for a packet. A packet from the host network arrives at no
+     * particular simulated time, since each machine keeps its own clock, so
+     * this keeps its delivery on the same coarse grid however the host
+     * threads happen to run.
+     */
+    private void scheduleAlignedReceiveInterrupt() {
+	long time = privilege.stats.totalTicks;
+	privilege.interrupt.schedule(Stats.NetworkTime - time%Stats.NetworkTime,
+				     "network recv", receiveInterrupt);
+    }
+
     private synchronized void receiveInterrupt() {
 	Lib.assertTrue(incomingPacket == null);
 
 	if (incomingBytes != null) {
 	    if (Machine.autoGrader().canReceivePacket(privilege)) {
 		try {
-		    incomingPacket = new Packet(incomingBytes);
+		    incomingPacket = new Packet(incomingBytes, incomingLength,
+						pooledBuffers);
 
 		    privilege.stats.numPacketsReceived++;
 		}
@@ -174,16 +195,20 @@ public class NetworkLink {
 		}
 	    }
 
+	    if (incomingPacket == null && pooledBuffers)
+		Packet.recycleBuffer(incomingBytes);
+
 	    incomingBytes = null;
 	    notify();
 
 	    if (incomingPacket == null)
-		scheduleReceiveInterrupt();
+		receivePending = false;
 	    else if (receiveInterruptHandler != null)
 		receiveInterruptHandler.run();
 	}
 	else {
-	    scheduleReceiveInterrupt();
+	    // idle until the receive thread gets another datagram
+	    receivePending = false;
 	}
     }
 
@@ -205,6 +230,8 @@ public class NetworkLink {
     }
 
     private void receiveLoop() {
+	DatagramPacket dp = new DatagramPacket(new byte[0], 0);
+
 	while (true) {
 	    synchronized(this) {
 		while (incomingBytes != null) {
@@ -216,25 +243,29 @@ public class NetworkLink {
 		}
 	    }
 
-	    byte[] packetBytes;
+	    // receive straight into the buffer the packet will use
+	    byte[] buffer = pooledBuffers ? Packet.allocateBuffer()
+		: new byte[Packet.maxPacketLength];
 
 	    try {
-		byte[] buffer = new byte[Packet.maxPacketLength];
-
-		DatagramPacket dp = new DatagramPacket(buffer, buffer.length);
+		dp.setData(buffer);
 		
 		socket.receive(dp);
-
-		packetBytes = new byte[dp.getLength()];
-
-		System.arraycopy(buffer,0, packetBytes,0, packetBytes.length);
 	    }
 	    catch (IOException e) {
 		return;
 	    }
 
 	    synchronized(this) {
-		incomingBytes = packetBytes;
+		incomingBytes = buffer;
+		incomingLength = dp.getLength();
+
+		// the packet is received at the next NetworkTime boundary
+		if (!receivePending) {
+		    receivePending = true;
+		    privilege.interrupt.post("network arrival",
+					     arrivalInterrupt);
+		}
 	    }
 	}
     }		
@@ -268,8 +299,13 @@ public class NetworkLink {
 	outgoingPacket = null;
 	
 	try {
-	    socket.send(new DatagramPacket(p.packetBytes, p.packetBytes.length,
-					   localHost, portBase+p.dstLink));
+	    if (outgoingDatagram == null)
+		outgoingDatagram = new DatagramPacket(new byte[0], 0, localHost,
+						      portBase);
+
+	    outgoingDatagram.setData(p.packetBytes, 0, p.getLength());
+	    outgoingDatagram.setPort(portBase+p.dstLink);
+	    socket.send(outgoingDatagram);
 
 	    privilege.stats.numPacketsSent++;
 	}
@@ -311,6 +347,7 @@ public class NetworkLink {
 
     private Runnable receiveInterrupt;
     private Runnable sendInterrupt;
+    private Runnable arrivalInterrupt;
 
     private Runnable receiveInterruptHandler = null;
     private Runnable sendInterruptHandler = null;
@@ -320,10 +357,15 @@ public class NetworkLink {
 
     private byte linkAddress;
     private double reliability;
+    private boolean pooledBuffers;
 
     private byte[] incomingBytes = null;
+    private int incomingLength;
+    private DatagramPacket outgoingDatagram = null;
     private Packet incomingPacket = null;
+    /** <tt>true</tt> while a receive interrupt is on its way or a received
+     *  packet has not been taken. */
+    private boolean receivePending = false;
     private Packet outgoingPacket = null;
 
-    private boolean sendBusy = false;
 }
@@ -3,7 +3,16 @@
 package nachos.machine;
 
 /**
- * A link-layer packet.
+ * A link-layer packet. The header and contents of a packet live together in
+ * <tt>packetBytes</tt>, with the contents starting at <tt>headerLength</tt>.
+ *
+ * <p>
+ * If <tt>NetworkLink.pooledBuffers</tt> is set, received packets are read in
+ * place from buffers that come from a small pool, and their
+ * <tt>contents</tt> is <tt>null</tt>. Once such a packet is no longer
+ * needed, <tt>recycle()</tt> returns its buffer so the network link can
+ * receive into it again. Otherwise every received packet gets its own
+ * buffer and a copy of its contents, and <tt>recycle()</tt> does nothing.
  *
  * @see	nachos.machine.NetworkLink
  */
@@ -16,27 +25,44 @@ public class Packet {
      * @param	contents	the contents of the packet.
      */
     public Packet(int dstLink, int srcLink, byte[] contents)
+	throws MalformedPacketException {
+	this(dstLink, srcLink, contents.length);
+
+	this.contents = contents;
+
+	// if java had subarrays, i'd use them. but System.arraycopy is ok...
+	System.arraycopy(contents, 0, packetBytes, headerLength,
+			 contents.length);
+    }
+
+    /**
+     * Allocate a new packet to be sent, with room for the specified number of
+     * content bytes. The caller fills in the contents, starting at
+     * <tt>packetBytes[headerLength]</tt>; <tt>contents</tt> is left
+     * <tt>null</tt>.
+     *
+     * @param	dstLink		the destination link address.
+     * @param	srcLink		the source link address.
+     * @param	contentsLength	the number of content bytes.
+     */
+    public Packet(int dstLink, int srcLink, int contentsLength)
 	throws MalformedPacketException {
 	// make sure the paramters are valid
 	if (dstLink < 0 || dstLink >= linkAddressLimit ||
 	    srcLink < 0 || srcLink >= linkAddressLimit ||
-	    contents.length > maxContentsLength)
+	    contentsLength < 0 || contentsLength > maxContentsLength)
 	    throw new MalformedPacketException();
 	    
 	this.dstLink = dstLink;
 	this.srcLink = srcLink;
-	this.contents = contents;
+	this.contentsLength = contentsLength;
 
-	packetBytes = new byte[headerLength + contents.length];
+	packetBytes = new byte[headerLength + contentsLength];
 
 	packetBytes[0] = NetworkLink.networkID;
 	packetBytes[1] = (byte) dstLink;
 	packetBytes[2] = (byte) srcLink;
-	packetBytes[3] = (byte) contents.length;
-
-	// if java had subarrays, i'd use them. but System.arraycopy is ok...
-	System.arraycopy(contents, 0, packetBytes, headerLength,
-			 contents.length);
+	packetBytes[3] = (byte) contentsLength;
     }
 
     /**
@@ -46,32 +72,106 @@ public class Packet {
      * @param	packetBytes	the bytes making up this packet.
      */
     public Packet(byte[] packetBytes) throws MalformedPacketException {
+	this(packetBytes, packetBytes.length, false);
+    }
+
+    /**
+     * Allocate a new packet over the first <i>length</i> bytes of a buffer
+     * received from the network.
+     *
+     * @param	packetBytes	the buffer holding the packet.
+     * @param	length		the number of bytes received.
+     * @param	pooled		<tt>true</tt> if the buffer came from
+     *				<tt>allocateBuffer()</tt>.
+     */
+    Packet(byte[] packetBytes, int length, boolean pooled)
+	throws MalformedPacketException {
 	this.packetBytes = packetBytes;
+	this.pooled = pooled;
 	
 	// make sure we have a valid header
-	if (packetBytes.length < headerLength ||
+	if (length < headerLength ||
 	    packetBytes[0] != NetworkLink.networkID ||
 	    packetBytes[1] < 0 || packetBytes[1] >= linkAddressLimit ||
 	    packetBytes[2] < 0 || packetBytes[2] >= linkAddressLimit ||
-	    packetBytes[3] < 0 || packetBytes[3] > packetBytes.length-4)
+	    packetBytes[3] < 0 || packetBytes[3] > length-headerLength)
 	    throw new MalformedPacketException();
 
 	dstLink = packetBytes[1];
 	srcLink = packetBytes[2];
+	contentsLength = packetBytes[3];
 
-	contents = new byte[packetBytes[3]];
-	System.arraycopy(packetBytes, headerLength, contents, 0,
-			 contents.length);
+	if (!pooled) {
+	    contents = new byte[contentsLength];
+	    System.arraycopy(packetBytes, headerLength, contents, 0,
+			     contentsLength);
+	}
+    }
+
+    /**
+     * Return the number of bytes this packet occupies on the network.
+     *
+     * @return	the length of this packet, header included.
+     */
+    public int getLength() {
+	return headerLength + contentsLength;
+    }
+
+    /**
+     * Return the buffer of this packet to the pool, if it came from there,
+     * in which case the packet must not be used afterwards. Does nothing
+     * for any other packet.
+     */
+    public void recycle() {
+	if (pooled) {
+	    pooled = false;
+	    recycleBuffer(packetBytes);
+	    packetBytes = null;
+	}
     }
 
-    /** This packet, as an array of bytes that can be sent on a network. */
+    /**
+     * Take a buffer big enough for any packet from the pool, or allocate one
+     * if the pool is empty.
+     */
+    static byte[] allocateBuffer() {
+	synchronized (pool) {
+	    if (poolSize > 0)
+		return pool[--poolSize];
+	}
+
+	return new byte[maxPacketLength];
+    }
+
+    /**
+     * Return a buffer from <tt>allocateBuffer()</tt> to the pool.
+     */
+    static void recycleBuffer(byte[] buffer) {
+	synchronized (pool) {
+	    if (poolSize < pool.length)
+		pool[poolSize++] = buffer;
+	}
+    }
+
+    /** This packet, as an array of bytes that can be sent on a network. Only
+     *  the first <tt>getLength()</tt> bytes belong to the packet. */
     public byte[] packetBytes;
     /** The address of the destination link of this packet. */
     public int dstLink;
     /** The address of the source link of this packet. */
     public int srcLink;
-    /** The contents of this packet, excluding the link-layer header. */
-    public byte[] contents;
+    /** The number of content bytes, which start at <tt>headerLength</tt> in
+     *  <tt>packetBytes</tt>. */
+    public int contentsLength;
+    /** The contents of this packet, excluding the link-layer header, or
+     *  <tt>null</tt> if the packet was received into a pooled buffer or
+     *  allocated to be filled in place. */
+    public byte[] contents = null;
+
+    private boolean pooled = false;
+
+    private static byte[][] pool = new byte[64][];
+    private static int poolSize = 0;
 
     /**
      * The number of bytes in a link-layer packet header. The header is
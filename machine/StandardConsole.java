@@ -25,11 +25,29 @@ public class StandardConsole implements SerialConsole {
 		public void run() { receiveInterrupt(); }
 	    };
 
+	inputArrived = new Runnable() {
+		public void run() { scheduleAlignedReceiveInterrupt(); }
+	    };
+
 	sendInterrupt = new Runnable() {
 		public void run() { sendInterrupt(); }
 	    };		
-	
-	scheduleReceiveInterrupt();
+
+	flushInterrupt = new Runnable() {
+		public void run() { flushInterrupt(); }
+	    };
+
+	// don't lose a partial line when Nachos exits
+	privilege.addExitNotificationHandler(new Runnable() {
+		public void run() { flush(); }
+	    });
+
+	Thread inputThread = new Thread(new Runnable() {
+		public void run() { inputLoop(); }
+	    });
+
+	inputThread.setDaemon(true);
+	inputThread.start();
     }
     
     public final void setInterruptHandlers(Runnable receiveInterruptHandler,
@@ -44,20 +62,90 @@ public class StandardConsole implements SerialConsole {
     }
 
     /**
-     * Attempt to read a byte from the object backing this console.
-     *
-     * @return	the byte read, or -1 of no data is available.
+     * Schedule a receive interrupt for the next multiple of
+     * <tt>Stats.ConsoleTime</tt> ticks, the times at which a polling console
+     * would look for input. Host input arrives at no particular simulated
+     * time, so this keeps its delivery on the same coarse grid however the
+     * host threads happen to run.
+     */
+    private void scheduleAlignedReceiveInterrupt() {
+	long time = privilege.stats.totalTicks;
+	privilege.interrupt.schedule(Stats.ConsoleTime - time%Stats.ConsoleTime,
+				     "console read", receiveInterrupt);
+    }
+
+    /**
+     * Read host input in bulk into the input buffer. Runs on its own host
+     * thread, and arranges a receive interrupt when input arrives while the
+     * console has nothing left to deliver, so no interrupts happen while
+     * there is no input. The end of host input is delivered as Ctrl-D.
      */
-    protected int in() {
-	try {
-	    if (System.in.available() <= 0)
-		return -1;
+    private void inputLoop() {
+	byte[] chunk = new byte[256];
+
+	while (true) {
+	    int amount;
+	    try {
+		amount = System.in.read(chunk);
+	    }
+	    catch (IOException e) {
+		amount = -1;
+	    }
 
-	    return System.in.read();
+	    // one Ctrl-D ends any partial line, and another the input
+	    if (amount < 0) {
+		chunk[0] = chunk[1] = endOfFile;
+		enqueueInput(chunk, 2);
+		return;
+	    }
+
+	    enqueueInput(chunk, amount);
 	}
-	catch (IOException e) {
-	    return -1;
+    }
+
+    /**
+     * Add host input to the input buffer, waiting while it is full, so that
+     * a console whose input is not being read stops reading the host.
+     */
+    private synchronized void enqueueInput(byte[] chunk, int amount) {
+	for (int i=0; i<amount; i++) {
+	    while (inCount == inBuffer.length) {
+		try {
+		    wait();
+		}
+		catch (InterruptedException e) {
+		}
+	    }
+
+	    inBuffer[(inHead + inCount) % inBuffer.length] = chunk[i];
+	    inCount++;
+	}
+
+	if (!receivePending) {
+	    receivePending = true;
+	    privilege.interrupt.post("console input", inputArrived);
+	}
+    }
+
+    /**
+     * Take the next valid character from the input buffer. Called with this
+     * console's monitor held.
+     *
+     * @return	the next character, or -1 if the input buffer is used up.
+     */
+    private int nextCharacter() {
+	while (inCount > 0) {
+	    int c = inBuffer[inHead] & 0xFF;
+	    inHead = (inHead + 1) % inBuffer.length;
+	    inCount--;
+	    notifyAll();
+
+	    c = translateCharacter(c);
+	    if (c != -1)
+		return c;
 	}
+
+	return -1;
     }
 
     private int translateCharacter(int c) {
@@ -71,8 +159,11 @@ public class StandardConsole implements SerialConsole {
 	// invalid if non-ASCII
 	if (c >= 0x80)
 	    return -1;
+	// end of file
+	else if (c == endOfFile)
+	    return c;
 	// backspace characters
-	else if (c == 0x04 || c == 0x08 || c == 0x19 || c == 0x1B || c == 0x7F)
+	else if (c == 0x08 || c == 0x19 || c == 0x1B || c == 0x7F)
 	    return '\b';
 	// if normal ASCII range, nothing to do
 	else if (c >= 0x20)
@@ -89,16 +180,20 @@ public class StandardConsole implements SerialConsole {
     private void receiveInterrupt() {
 	Lib.assertTrue(incomingKey == -1);
 
-	incomingKey = translateCharacter(in());
-	if (incomingKey == -1) {
-	    scheduleReceiveInterrupt();
-	}
-	else {
-	    privilege.stats.numConsoleReads++;
+	synchronized (this) {
+	    incomingKey = nextCharacter();
 
-	    if (receiveInterruptHandler != null)
-		receiveInterruptHandler.run();
+	    // idle until the input thread finds more
+	    if (incomingKey == -1) {
+		receivePending = false;
+		return;
+	    }
 	}
+
+	privilege.stats.numConsoleReads++;
+
+	if (receiveInterruptHandler != null)
+	    receiveInterruptHandler.run();
     }
 
     public final int readByte() {
@@ -118,44 +213,125 @@ public class StandardConsole implements SerialConsole {
     }
 
     /**
-     * Write a byte to the object backing this console.
+     * Write bytes to the object backing this console. The bytes are held on
+     * the host side until a newline arrives, the holding buffer fills, or
+     * <tt>flushTicks</tt> pass, and then written all at once.
      *
-     * @param	value	the byte to write.
+     * @param	buf	the buffer holding the bytes to write.
+     * @param	offset	the first byte to write.
+     * @param	length	the number of bytes to write.
+     */
+    protected void out(byte[] buf, int offset, int length) {
+	boolean newline = false;
+	for (int i=0; i<length; i++) {
+	    if (hostLength == hostBuffer.length)
+		flush();
+
+	    hostBuffer[hostLength++] = buf[offset+i];
+	    if (buf[offset+i] == '\n')
+		newline = true;
+	}
+
+	if (newline) {
+	    flush();
+	}
+	else if (hostLength > 0 && !flushScheduled) {
+	    flushScheduled = true;
+	    privilege.interrupt.schedule(flushTicks, "console flush",
+					 flushInterrupt);
+	}
+    }
+
+    /**
+     * Write any output held on the host side.
      */
-    protected void out(int value) {
-	System.out.write(value);
+    public void flush() {
+	if (hostLength == 0)
+	    return;
+
+	System.out.write(hostBuffer, 0, hostLength);
 	System.out.flush();
-    }	
+	hostLength = 0;
+    }
 
-    private void sendInterrupt() {
-	Lib.assertTrue(outgoingKey != -1);
+    private void flushInterrupt() {
+	flushScheduled = false;
+	flush();
+    }
 
-	out(outgoingKey);
-	outgoingKey = -1;
+    private void sendInterrupt() {
+	Lib.assertTrue(outgoingLength > 0);
 
-	privilege.stats.numConsoleWrites++;
+	out(outgoing, 0, outgoingLength);
+	privilege.stats.numConsoleWrites += outgoingLength;
+	outgoingLength = 0;
 
 	if (sendInterruptHandler != null)
 	    sendInterruptHandler.run();
     }
 
     public final void writeByte(int value) {
-	if (outgoingKey == -1)
+	writeBytes(new byte[] { (byte) value }, 0, 1);
+    }
+
+    /**
+     * Send up to <i>length</i> bytes as a single burst. The send interrupt
+     * handler is called once, when the whole burst has been sent. If a send
+     * is already in progress, the result is not defined.
+     *
+     * @param	buf	the buffer holding the bytes to send.
+     * @param	offset	the first byte to send.
+     * @param	length	the number of bytes available to send.
+     * @return	the number of bytes accepted for this burst, at least one if
+     *		<i>length</i> is positive.
+     */
+    public final int writeBytes(byte[] buf, int offset, int length) {
+	if (outgoingLength == 0)
 	    scheduleSendInterrupt();
-	
-	outgoingKey = value&0xFF;
+
+	int amount = Math.min(length, outgoing.length);
+	System.arraycopy(buf, offset, outgoing, 0, amount);
+	outgoingLength = amount;
+
+	return amount;
     }
 
     private Privilege privilege = null;
 
     private Runnable receiveInterrupt;
+    private Runnable inputArrived;
     private Runnable sendInterrupt;
 
     private Runnable receiveInterruptHandler = null;
     private Runnable sendInterruptHandler = null;
 
+    private Runnable flushInterrupt;
+
     private int incomingKey = -1;
-    private int outgoingKey = -1;
+
+    /** Host input not yet delivered, <tt>inCount</tt> bytes from
+     *  <tt>inHead</tt> on, wrapping around. */
+    private byte[] inBuffer = new byte[4096];
+    private int inHead = 0, inCount = 0;
+    /** <tt>true</tt> while a receive interrupt is pending or a received
+     *  byte has not been read. */
+    private boolean receivePending = false;
+
+    /** The burst being sent. */
+    private byte[] outgoing = new byte[maxBurst];
+    private int outgoingLength = 0;
+    /** The most bytes sent in one burst. */
+    private static final int maxBurst = 64;
+
+    /** Output sent but not yet written to the host. */
+    private byte[] hostBuffer = new byte[4096];
+    private int hostLength = 0;
+    private boolean flushScheduled = false;
+    /** How long output without a newline is held before it is written. */
+    private static final int flushTicks = 10 * Stats.ConsoleTime;
 
     private boolean prevCarriageReturn = false;
+
+    /** Ctrl-D, which marks the end of input. */
+    private static final byte endOfFile = 0x04;
 }
@@ -4,6 +4,8 @@ package nachos.machine;
 
 import nachos.machine.*;
 
+import java.util.LinkedList;
+
 /**
  * An object that maintains Nachos runtime statistics.
  */
@@ -29,8 +31,23 @@ public final class Stats {
 			   + ", TLB misses " + numTLBMisses);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+
+	for (Runnable report : reports)
+	    report.run();
     }
 
+    /**
+     * Add a report for <tt>print()</tt> to print after the statistics, so
+     * that the kernel can append statistics of its own.
+     *
+     * @param	report	prints the report when run.
+     */
+    public static void addReport(Runnable report) {
+	reports.add(report);
+    }
+
+    private static LinkedList<Runnable> reports = new LinkedList<Runnable>();
+
     /**
      * The total amount of simulated time that has passed since Nachos
      * started.
@@ -8,6 +8,8 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * This class implements a file system that redirects all requests to the host
@@ -27,13 +29,20 @@ public class StubFileSystem implements FileSystem {
     }
     
     public OpenFile open(String name, boolean truncate) {
-	if (!checkName(name))
+	CachedName entry = lookup(name);
+	if (entry == null)
 	    return null;
 	
 	delay();
+
+	// a name known not to exist is not looked for on the host again
+	if (!truncate && !entry.exists)
+	    return null;
 	    
 	try {
-	    return new StubOpenFile(name, truncate);
+	    OpenFile file = new StubOpenFile(name, entry.file, truncate);
+	    entry.exists = true;
+	    return file;
 	}
 	catch (IOException e) {
 	    return null;
@@ -41,16 +50,59 @@ public class StubFileSystem implements FileSystem {
     }
     
     public boolean remove(String name) {
-	if (!checkName(name))
+	CachedName entry = lookup(name);
+	if (entry == null)
 	    return false;
 
 	delay();
 
-	FileRemover fr = new FileRemover(new File(directory, name));
+	if (!entry.exists)
+	    return false;
+
+	FileRemover fr = new FileRemover(entry.file);
 	privilege.doPrivileged(fr);
+	if (fr.successful)
+	    entry.exists = false;
 	return fr.successful;
     }
 
+    /**
+     * Resolve a name through the name cache, checking the name and whether
+     * its host file exists only if the name is not cached. The entry is found
+     * or added atomically, so threads resolving the same name share it.
+     *
+     * @return	the cache entry, or <tt>null</tt> if the name is not allowed.
+     */
+    private CachedName lookup(String name) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	CachedName entry = nameCache.get(name);
+	if (entry == null && checkName(name)) {
+	    final CachedName added = new CachedName(new File(directory, name));
+	    privilege.doPrivileged(new Runnable() {
+		public void run() { added.exists = added.file.exists(); }
+	    });
+	    nameCache.put(name, added);
+	    entry = added;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return entry;
+    }
+
+    /**
+     * A name cache entry: the host file a name resolves to, and whether it
+     * exists.
+     */
+    private static class CachedName {
+	CachedName(File file) {
+	    this.file = file;
+	}
+
+	final File file;
+	boolean exists = false;
+    }
+
     private class FileRemover implements Runnable {
 	public FileRemover(File f) {
 	    this.f = f;
@@ -71,33 +123,38 @@ public class StubFileSystem implements FileSystem {
 	Lib.assertTrue(Machine.timer().getTime() >= time+amount);
     }
 
+    /**
+     * An open file. Any number of these can be open at once, but at most
+     * <tt>maxHostFiles</tt> of them hold an open host file at any time. The
+     * rest had theirs closed when it was least recently used, and reopen it
+     * on their next access.
+     */
     private class StubOpenFile extends OpenFileWithPosition {
-	StubOpenFile(final String name, final boolean truncate)
-	    throws IOException {
+	StubOpenFile(final String name, final File hostFile,
+		     final boolean truncate) throws IOException {
 	    super(StubFileSystem.this, name);
 
-	    final File f = new File(directory, name);
-
 	    if (openCount == maxOpenFiles)
 		throw new IOException();
 
+	    this.hostFile = hostFile;
+
 	    privilege.doPrivileged(new Runnable() {
-		public void run() { getRandomAccessFile(f, truncate); }
+		public void run() { getRandomAccessFile(truncate); }
 	    });
 
 	    if (file == null)
 		throw new IOException();
 
+	    hostFiles.put(this, this);
+
 	    open = true;
 	    openCount++;
 	}
 
-	private void getRandomAccessFile(File f, boolean truncate) {
+	private void getRandomAccessFile(boolean truncate) {
 	    try {
-		if (!truncate && !f.exists())
-		    return;
-
-		file = new RandomAccessFile(f, "rw");
+		file = new RandomAccessFile(hostFile, "rw");
 
 		if (truncate)
 		    file.setLength(0);
@@ -106,6 +163,50 @@ public class StubFileSystem implements FileSystem {
 	    }
 	}
 
+	/**
+	 * Return the host file backing this file, reopening it if it was
+	 * closed to make room for another.
+	 *
+	 * @return	the host file, or <tt>null</tt> if it cannot be reopened,
+	 *		such as after it was removed.
+	 */
+	private RandomAccessFile getHostFile() {
+	    if (file == null) {
+		privilege.doPrivileged(new Runnable() {
+		    public void run() {
+			// reopening with "rw" would quietly recreate a
+			// removed file, empty
+			if (!hostFile.exists())
+			    return;
+
+			try {
+			    file = new RandomAccessFile(hostFile, "rw");
+			}
+			catch (IOException e) {
+			}
+		    }
+		});
+
+		if (file == null)
+		    return null;
+	    }
+
+	    // mark this file most recently used, evicting another if needed
+	    hostFiles.put(this, this);
+
+	    return file;
+	}
+
+	private void closeHostFile() {
+	    try {
+		file.close();
+	    }
+	    catch (IOException e) {
+	    }
+
+	    file = null;
+	}
+
 	public int read(int pos, byte[] buf, int offset, int length) {
 	    if (!open)
 		return -1;
@@ -113,6 +214,10 @@ public class StubFileSystem implements FileSystem {
 	    try {
 		delay();
 
+		RandomAccessFile file = getHostFile();
+		if (file == null)
+		    return -1;
+
 		file.seek(pos);
 		return Math.max(0, file.read(buf, offset, length));
 	    }
@@ -128,6 +233,10 @@ public class StubFileSystem implements FileSystem {
 	    try {
 		delay();
 		
+		RandomAccessFile file = getHostFile();
+		if (file == null)
+		    return -1;
+
 		file.seek(pos);
 		file.write(buf, offset, length);
 		return length;
@@ -138,7 +247,14 @@ public class StubFileSystem implements FileSystem {
 	}
 
 	public int length() {
+	    if (!open)
+		return -1;
+
 	    try {
+		RandomAccessFile file = getHostFile();
+		if (file == null)
+		    return -1;
+
 		return (int) file.length();
 	    }
 	    catch (IOException e) {
@@ -152,19 +268,84 @@ public class StubFileSystem implements FileSystem {
 		openCount--;
 	    }
 		
-	    try {
-		file.close();
-	    }
-	    catch (IOException e) {
-	    }
+	    hostFiles.remove(this);
+	    if (file != null)
+		closeHostFile();
 	}
 
+	private File hostFile;
 	private RandomAccessFile file = null;
 	private boolean open = false;
     }
 
+    /**
+     * Test if this module is working. Opens more files than can hold a host
+     * file at once, and checks that a file whose host file was closed and
+     * then removed cannot be used any more.
+     */
+    public static void selfTest() {
+	FileSystem fs = Machine.stubFileSystem();
+
+	OpenFile[] files = new OpenFile[maxHostFiles+1];
+	for (int i=0; i<files.length; i++) {
+	    files[i] = fs.open(selfTestName(i), true);
+	    Lib.assertTrue(files[i] != null);
+	}
+
+	// the first file's host file is the least recently used, so opening
+	// the last one closed it
+	byte[] buf = new byte[1];
+	Lib.assertTrue(fs.remove(selfTestName(0)));
+	Lib.assertTrue(files[0].write(buf, 0, 1) == -1);
+	Lib.assertTrue(files[0].read(buf, 0, 1) == -1);
+	Lib.assertTrue(fs.open(selfTestName(0), false) == null);
+
+	for (int i=0; i<files.length; i++) {
+	    files[i].close();
+	    if (i > 0)
+		Lib.assertTrue(fs.remove(selfTestName(i)));
+	}
+    }
+
+    private static String selfTestName(int i) {
+	return "stubfs.test." + i;
+    }
+
     private int openCount = 0;
-    private static final int maxOpenFiles = 16;
+    private static final int maxOpenFiles = 4096;
+
+    /**
+     * The open files currently holding an open host file, in least recently
+     * used order.
+     */
+    private LinkedHashMap<StubOpenFile,StubOpenFile> hostFiles =
+	new LinkedHashMap<StubOpenFile,StubOpenFile>(16, 0.75f, true) {
+	    protected boolean removeEldestEntry(Map.Entry<StubOpenFile,
+						StubOpenFile> e) {
+		if (size() <= maxHostFiles)
+		    return false;
+
+		e.getKey().closeHostFile();
+		return true;
+	    }
+	};
+    private static final int maxHostFiles = 16;
+
+    /**
+     * Recently looked up names that are allowed, in least recently used
+     * order. Names known not to exist are cached too, so looking one up again
+     * does not ask the host. Creating and removing files through this file
+     * system keeps the entries current; files created or removed on the host
+     * while Nachos runs are not noticed until their entry is evicted.
+     */
+    private LinkedHashMap<String,CachedName> nameCache =
+	new LinkedHashMap<String,CachedName>(16, 0.75f, true) {
+	    protected boolean removeEldestEntry(Map.Entry<String,
+						CachedName> e) {
+		return size() > nameCacheSize;
+	    }
+	};
+    private static final int nameCacheSize = 256;
     
     private Privilege privilege;
     private File directory;
@@ -0,0 +1,387 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.LinkedList;
+
+/**
+ * One end of a reliable byte-stream connection. Data written is cut into
+ * segments that are sent as soon as the send window has room, without waiting
+ * for earlier segments to be acknowledged; the receiver acknowledges the
+ * segments it has received in order with a cumulative ACK. Segments that are
+ * not acknowledged in time are retransmitted by the <tt>Transport</tt>.
+ *
+ * <p>
+ * Reads never wait; they return whatever data has arrived, or -1 once the
+ * remote end has closed the connection and all its data has been read.
+ *
+ * @see	nachos.network.Transport
+ */
+public class Connection extends OpenFile {
+    Connection(Transport transport, int localPort, int remoteLink,
+	       int remotePort, boolean established) {
+	super(null, "connection to " + remoteLink + ":" + remotePort);
+
+	this.transport = transport;
+	this.localPort = localPort;
+	this.remoteLink = remoteLink;
+	this.remotePort = remotePort;
+	this.established = established;
+
+	// a power of two, so that masking gives each of any windowSize
+	// consecutive sequence numbers its own slot, even across a wrap
+	int slots = 1;
+	while (slots < transport.windowSize)
+	    slots <<= 1;
+	window = new MailMessage[slots];
+    }
+
+    /**
+     * Send the connection request and wait for the remote host to accept it.
+     *
+     * @return	<tt>true</tt> if the connection was established.
+     */
+    boolean connect() {
+	lock.acquire();
+	lastSent = Machine.timer().getTime();
+	lock.release();
+
+	transport.send(transport.segment(this, Transport.SYN, 0, null, 0, 0));
+	transport.startTimer();
+
+	lock.acquire();
+	while (!established && !dead)
+	    changed.sleep();
+	boolean success = established;
+	lock.release();
+
+	return success;
+    }
+
+    /**
+     * Read the data that has arrived, without waiting for more.
+     *
+     * @return	the number of bytes read, or -1 if the connection is closed and
+     *		there is no more data.
+     */
+    public int read(byte[] buf, int offset, int length) {
+	lock.acquire();
+
+	int amount = Math.min(length, receiveCount);
+	for (int i=0; i<amount; i++) {
+	    buf[offset+i] = receiveBuffer[receiveHead];
+	    receiveHead = (receiveHead + 1) % receiveBuffer.length;
+	}
+	receiveCount -= amount;
+
+	if (amount == 0 && length > 0 && (remoteClosed || dead))
+	    amount = -1;
+
+	lock.release();
+	return amount;
+    }
+
+    /**
+     * Return whether <tt>read()</tt> would return something other than 0:
+     * either data has arrived or the connection has closed. Does not take
+     * the connection's lock, so it can be called with interrupts disabled.
+     */
+    boolean isReadable() {
+	return receiveCount > 0 || remoteClosed || dead;
+    }
+
+    /**
+     * Write data to the connection, waiting only while the send window is
+     * full.
+     *
+     * @return	the number of bytes written, or -1 if the connection is
+     *		closed.
+     */
+    public int write(byte[] buf, int offset, int length) {
+	lock.acquire();
+
+	int written = 0;
+	while (written < length && !dead && !localClosed) {
+	    while (sendNext - sendBase >= transport.windowSize && !dead)
+		changed.sleep();
+	    if (dead)
+		break;
+
+	    int amount = Math.min(length - written, Transport.maxSegmentData);
+	    MailMessage segment =
+		transport.segment(this, Transport.DAT, sendNext,
+				  buf, offset + written, amount);
+
+	    // the retransmission clock runs from the oldest unacknowledged
+	    // segment
+	    if (sendBase == sendNext) {
+		lastSent = Machine.timer().getTime();
+		retries = 0;
+	    }
+	    window[slot(sendNext)] = segment;
+	    sendNext++;
+	    written += amount;
+
+	    lock.release();
+	    transport.send(segment);
+	    transport.startTimer();
+	    lock.acquire();
+	}
+
+	lock.release();
+
+	if (written == 0 && length > 0)
+	    return -1;
+	return written;
+    }
+
+    /**
+     * Close this end of the connection. Returns without waiting; data still
+     * in the send window is delivered first, and then the remote end is told
+     * the connection is closed.
+     */
+    public void close() {
+	lock.acquire();
+
+	if (!localClosed) {
+	    localClosed = true;
+
+	    if (dead)
+		transport.remove(this);
+	    else if (sendBase == sendNext)
+		sendFin();
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Handle a segment that arrived for this connection. Called by the
+     * transport from the postal delivery thread.
+     */
+    void receive(int flags, int seq, MailMessage segment) {
+	lock.acquire();
+
+	if (flags == (Transport.SYN | Transport.ACK)) {
+	    establish();
+	}
+	else if (flags == Transport.SYN) {
+	    // the remote host missed our acceptance
+	    needSynAck = true;
+	    transport.schedule(this);
+	}
+	else if (flags == Transport.DAT) {
+	    establish();
+
+	    byte[] bytes = segment.packet.packetBytes;
+	    int start = MailMessage.contentsOffset + Transport.headerLength;
+	    int length = segment.contentsLength - Transport.headerLength;
+	    if (seq == receiveNext && !remoteClosed &&
+		receiveCount + length <= receiveBuffer.length) {
+		for (int i=0; i<length; i++) {
+		    receiveBuffer[(receiveHead + receiveCount + i) %
+				  receiveBuffer.length] = bytes[start + i];
+		}
+		receiveCount += length;
+		receiveNext++;
+		readable();
+	    }
+
+	    // acknowledge duplicates too, in case our last ACK was lost
+	    needAck = true;
+	    transport.schedule(this);
+	}
+	else if (flags == Transport.ACK) {
+	    acknowledge(seq);
+	}
+	else if (flags == Transport.FIN) {
+	    // the remote end only closes after all its data was acknowledged
+	    if (seq == receiveNext) {
+		remoteClosed = true;
+		changed.wakeAll();
+		readable();
+	    }
+	    needFinAck = true;
+	    transport.schedule(this);
+	}
+	else if (flags == (Transport.FIN | Transport.ACK)) {
+	    if (finSent && !finished) {
+		finished = true;
+		transport.remove(this);
+	    }
+	}
+
+	lock.release();
+    }
+
+    private void establish() {
+	if (!established) {
+	    established = true;
+	    changed.wakeAll();
+	}
+    }
+
+    /**
+     * Slide the send window up to the cumulative ACK <i>ack</i>.
+     */
+    private void acknowledge(int ack) {
+	// a repeated ACK means the remote end is alive but its receive buffer
+	// is full; keep probing it without counting towards giving up
+	if (ack == sendBase) {
+	    retries = 0;
+	    return;
+	}
+
+	if (ack - sendBase <= 0 || ack - sendNext > 0)
+	    return;
+
+	for (int seq=sendBase; seq!=ack; seq++)
+	    window[slot(seq)] = null;
+	sendBase = ack;
+
+	lastSent = Machine.timer().getTime();
+	retries = 0;
+	changed.wakeAll();
+
+	if (localClosed && sendBase == sendNext && !finSent)
+	    sendFin();
+    }
+
+    private void sendFin() {
+	finSent = true;
+	needFin = true;
+	lastSent = Machine.timer().getTime();
+	retries = 0;
+	transport.schedule(this);
+    }
+
+    /**
+     * Return the control segments this connection is waiting to send, and
+     * clear them. Called by the transport's sender thread.
+     */
+    LinkedList<MailMessage> takeControl() {
+	LinkedList<MailMessage> segments = new LinkedList<MailMessage>();
+
+	lock.acquire();
+	queued = false;
+
+	if (needSynAck)
+	    segments.add(transport.segment(this, Transport.SYN|Transport.ACK,
+					   0, null, 0, 0));
+	if (needAck)
+	    segments.add(transport.segment(this, Transport.ACK, receiveNext,
+					   null, 0, 0));
+	if (needFinAck)
+	    segments.add(transport.segment(this, Transport.FIN|Transport.ACK,
+					   receiveNext, null, 0, 0));
+	if (needFin)
+	    segments.add(transport.segment(this, Transport.FIN, sendNext,
+					   null, 0, 0));
+
+	needSynAck = needAck = needFinAck = needFin = false;
+
+	lock.release();
+	return segments;
+    }
+
+    /**
+     * Collect the segments that have gone unacknowledged for too long, so
+     * the transport can send them again. Gives up on the connection after
+     * too many retransmissions the remote end does not answer.
+     *
+     * @param	segments	the list to add the segments to.
+     * @return	<tt>true</tt> if this connection is still waiting for an
+     *		acknowledgement.
+     */
+    boolean retransmit(LinkedList<MailMessage> segments) {
+	lock.acquire();
+
+	boolean waiting = !dead &&
+	    (!established || sendBase != sendNext || (finSent && !finished));
+
+	long time = Machine.timer().getTime();
+	if (waiting && time - lastSent >= transport.retransmitTicks) {
+	    if (++retries > transport.maxRetransmits) {
+		Lib.debug(dbgNet, "giving up on " + getName());
+		dead = true;
+		waiting = false;
+		changed.wakeAll();
+		readable();
+		transport.remove(this);
+	    }
+	    else {
+		lastSent = time;
+
+		if (!established)
+		    segments.add(transport.segment(this, Transport.SYN, 0,
+						   null, 0, 0));
+		for (int seq=sendBase; seq!=sendNext; seq++)
+		    segments.add(window[slot(seq)]);
+		if (finSent)
+		    segments.add(transport.segment(this, Transport.FIN,
+						   sendNext, null, 0, 0));
+	    }
+	}
+
+	lock.release();
+	return waiting;
+    }
+
+    /** <tt>true</tt> while this connection is on the transport's outbox.
+     *  Guarded by this connection's lock. */
+    boolean queued = false;
+
+    final int localPort, remoteLink, remotePort;
+
+    /**
+     * Wake the threads in <tt>Transport.select()</tt> that watch this
+     * connection, because it may have become readable.
+     */
+    private void readable() {
+	boolean intStatus = Machine.interrupt().disable();
+	for (Waiter waiter : selectors)
+	    waiter.wake();
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the index in <tt>window</tt> of the segment with sequence number
+     * <i>seq</i>. Sequence numbers wrap, so may be negative.
+     */
+    private int slot(int seq) {
+	return seq & (window.length-1);
+    }
+
+    /** Threads in <tt>Transport.select()</tt> watching this connection;
+     *  guarded by disabling interrupts. */
+    LinkedList<Waiter> selectors = new LinkedList<Waiter>();
+
+    private Transport transport;
+    private Lock lock = new Lock("Connection.lock");
+    private Condition2 changed = new Condition2(lock, "Connection.changed");
+
+    private boolean established, dead = false;
+    private boolean localClosed = false, remoteClosed = false;
+    private boolean finSent = false, finished = false;
+
+    /** Segments <tt>sendBase</tt> up to <tt>sendNext</tt> have been sent
+     *  and not acknowledged; segment <i>s</i> is in
+     *  <tt>window[slot(s)]</tt>. */
+    private MailMessage[] window;
+    private int sendBase = 0, sendNext = 0;
+    private long lastSent;
+    private int retries = 0;
+
+    /** The sequence number of the next segment expected in order. */
+    private int receiveNext = 0;
+    private byte[] receiveBuffer = new byte[receiveBufferSize];
+    private int receiveHead = 0, receiveCount = 0;
+
+    private boolean needSynAck = false, needAck = false;
+    private boolean needFin = false, needFinAck = false;
+
+    private static final int receiveBufferSize = 4096;
+
+    private static final char dbgNet = 'n';
+}
@@ -4,7 +4,10 @@ import nachos.machine.*;
 
 /**
  * A mail message. Includes a packet header, a mail header, and the actual
- * payload.
+ * payload. The payload is always the <tt>contentsLength</tt> bytes of
+ * <tt>packet.packetBytes</tt> starting at <tt>contentsOffset</tt>, which can
+ * be read in place; <tt>contents</tt> holds a copy of it unless the packet
+ * came from a pooled buffer.
  *
  * @see	nachos.machine.Packet
  */
@@ -20,25 +23,42 @@ public class MailMessage {
      */
     public MailMessage(int dstLink, int dstPort, int srcLink, int srcPort,
 		       byte[] contents) throws MalformedPacketException {
+	this(dstLink, dstPort, srcLink, srcPort, contents.length);
+
+	this.contents = contents;
+
+	System.arraycopy(contents, 0, packet.packetBytes, contentsOffset,
+			 contents.length);
+    }
+
+    /**
+     * Allocate a new mail message to be sent, with room for the specified
+     * number of content bytes. The caller fills in the contents, starting at
+     * <tt>packet.packetBytes[contentsOffset]</tt>; <tt>contents</tt> is
+     * left <tt>null</tt>.
+     *
+     * @param	dstLink		the destination link address.
+     * @param	dstPort		the destination port.
+     * @param	srcLink		the source link address.
+     * @param	srcPort		the source port.
+     * @param	contentsLength	the number of content bytes.
+     */
+    public MailMessage(int dstLink, int dstPort, int srcLink, int srcPort,
+		       int contentsLength) throws MalformedPacketException {
 	// make sure the paramters are valid
 	if (dstPort < 0 || dstPort >= portLimit ||
 	    srcPort < 0 || srcPort >= portLimit ||
-	    contents.length > maxContentsLength)
+	    contentsLength < 0 || contentsLength > maxContentsLength)
 	    throw new MalformedPacketException();
 
 	this.dstPort = (byte) dstPort;
 	this.srcPort = (byte) srcPort;
-	this.contents = contents;
-
-	byte[] packetContents = new byte[headerLength + contents.length];
+	this.contentsLength = contentsLength;
 
-	packetContents[0] = (byte) dstPort;
-	packetContents[1] = (byte) srcPort;
+	packet = new Packet(dstLink, srcLink, headerLength + contentsLength);
 
-	System.arraycopy(contents, 0, packetContents, headerLength,
-			 contents.length);
-
-	packet = new Packet(dstLink, srcLink, packetContents);
+	packet.packetBytes[Packet.headerLength+0] = (byte) dstPort;
+	packet.packetBytes[Packet.headerLength+1] = (byte) srcPort;
     }
 	
     /**
@@ -48,19 +68,45 @@ public class MailMessage {
      */
     public MailMessage(Packet packet) throws MalformedPacketException {
 	this.packet = packet;
+
+	byte[] bytes = packet.packetBytes;
 	
 	// make sure we have a valid header
-	if (packet.contents.length < headerLength ||
-	    packet.contents[0] < 0 || packet.contents[0] >= portLimit ||
-	    packet.contents[1] < 0 || packet.contents[1] >= portLimit)
+	if (packet.contentsLength < headerLength ||
+	    bytes[Packet.headerLength+0] < 0 ||
+	    bytes[Packet.headerLength+0] >= portLimit ||
+	    bytes[Packet.headerLength+1] < 0 ||
+	    bytes[Packet.headerLength+1] >= portLimit)
 	    throw new MalformedPacketException();
 
-	dstPort = packet.contents[0];
-	srcPort = packet.contents[1];
+	dstPort = bytes[Packet.headerLength+0];
+	srcPort = bytes[Packet.headerLength+1];
 
-	contents = new byte[packet.contents.length - headerLength];
-	System.arraycopy(packet.contents, headerLength, contents, 0,
-			 contents.length);
+	contentsLength = packet.contentsLength - headerLength;
+
+	if (packet.contents != null)
+	    contents = getContents();
+    }
+
+    /**
+     * Return a copy of the contents of this message.
+     *
+     * @return	the contents, excluding the mail message header.
+     */
+    public byte[] getContents() {
+	byte[] contents = new byte[contentsLength];
+	System.arraycopy(packet.packetBytes, contentsOffset, contents, 0,
+			 contentsLength);
+	return contents;
+    }
+
+    /**
+     * Release the packet holding this message once its contents are no
+     * longer needed. If the packet came from a pooled buffer, the message
+     * must not be used afterwards.
+     */
+    public void recycle() {
+	packet.recycle();
     }
 
     /**
@@ -69,7 +115,7 @@ public class MailMessage {
     public String toString() {
 	return "from (" + packet.srcLink + ":" + srcPort +
 	    ") to (" + packet.dstLink + ":" + dstPort +
-	    "), " + contents.length + " bytes";
+	    "), " + contentsLength + " bytes";
     }
     
     /** This message, as a packet that can be sent through a network link. */
@@ -78,8 +124,11 @@ public class MailMessage {
     public int dstPort;
     /** The port used by this message on the source machine. */
     public int srcPort;
-    /** The contents of this message, excluding the mail message header. */
-    public byte[] contents;
+    /** The number of content bytes, excluding the mail message header. */
+    public int contentsLength;
+    /** The contents of this message, excluding the mail message header, or
+     *  <tt>null</tt> if its packet has none. */
+    public byte[] contents = null;
 
     /**
      * The number of bytes in a mail header. The header is formatted as
@@ -97,6 +146,10 @@ public class MailMessage {
     public static final int maxContentsLength =
 	Packet.maxContentsLength - headerLength;
 
+    /** Where the contents of a message start in its packet's bytes. */
+    public static final int contentsOffset =
+	Packet.headerLength + headerLength;
+
     /**
      * The upper limit on mail ports. All ports fall between <tt>0</tt> and
      * <tt>portLimit - 1</tt>.
@@ -24,6 +24,7 @@ public class NetKernel extends VMKernel {
 	super.initialize(args);
 
 	postOffice = new PostOffice();
+	transport = new Transport(postOffice);
     }
 
     /**
@@ -52,6 +53,35 @@ public class NetKernel extends VMKernel {
 	// if we're 0 or 1, ping the opposite
 	if (local <= 1)
 	    ping(1-local);
+
+	mailTest(local);
+    }
+
+    /**
+     * Send this machine mail that looks like a transport SYN segment, and
+     * make sure it still reaches its mailbox.
+     */
+    private void mailTest(int local) {
+	byte[] contents = new byte[] { 1, 0, 0, 0, 0 };
+
+	MailMessage mail;
+
+	try {
+	    mail = new MailMessage(local, 2, local, 0, contents);
+	}
+	catch (MalformedPacketException e) {
+	    Lib.assertNotReached();
+	    return;
+	}
+
+	postOffice.send(mail);
+
+	MailMessage received = postOffice.receive(2);
+	Lib.assertTrue(received.srcPort == 0 &&
+		       java.util.Arrays.equals(received.getContents(), contents));
+	received.recycle();
+
+	System.out.println("mail test passed");
     }
 
     private void ping(int dstLink) {
@@ -76,6 +106,7 @@ public class NetKernel extends VMKernel {
 	postOffice.send(ping);
 
 	MailMessage ack = postOffice.receive(0);
+	ack.recycle();
 	
 	long endTime = Machine.timer().getTime();
 
@@ -91,12 +122,15 @@ public class NetKernel extends VMKernel {
 	    try {
 		ack = new MailMessage(ping.packet.srcLink, ping.srcPort,
 				      ping.packet.dstLink, ping.dstPort,
-				      ping.contents);
+				      ping.getContents());
 	    }
 	    catch (MalformedPacketException e) {
 		// should never happen...
 		continue;
 	    }
+	    finally {
+		ping.recycle();
+	    }
 
 	    postOffice.send(ack);
 	}	
@@ -116,7 +150,12 @@ public class NetKernel extends VMKernel {
 	super.terminate();
     }
 
-    private PostOffice postOffice;
+    /** The post office used by the <tt>receive()</tt> syscalls. */
+    public static PostOffice postOffice = null;
+
+    /** The reliable transport used by the <tt>connect()</tt> and
+     *  <tt>accept()</tt> syscalls. */
+    public static Transport transport = null;
 
     // dummy variables to make javac smarter
     private static NetProcess dummy1 = null;
@@ -16,9 +16,118 @@ public class NetProcess extends VMProcess {
 	super();
     }
 
+    /* handleConnect(int host, int port)
+     * Open a connection to a port on a remote host, waiting until the remote
+     * host accepts it.
+     * @param a0 the link address of the remote host
+     * @param a1 the port on the remote host
+     * @return the file descriptor of the connection, or -1 on error
+     */
+    private int handleConnect(int host, int port) {
+	if (host < 0 || host > 0xFF || port < 0 || port >= MailMessage.portLimit)
+	    return -1;
+
+	Connection connection = NetKernel.transport.connect(host, port);
+	if (connection == null)
+	    return -1;
+
+	int fd = allocateFileDescriptor(2, connection);
+	if (fd == -1)
+	    connection.close();
+	return fd;
+    }
+
+    /* handleAccept(int port)
+     * Accept a connection request waiting on a local port. Does not wait for
+     * a request to arrive.
+     * @param a0 the local port
+     * @return the file descriptor of the connection, or -1 if no request is
+     * waiting or on error
+     */
+    private int handleAccept(int port) {
+	if (port < 0 || port >= MailMessage.portLimit)
+	    return -1;
+
+	Connection connection = NetKernel.transport.accept(port);
+	if (connection == null)
+	    return -1;
+
+	int fd = allocateFileDescriptor(2, connection);
+	if (fd == -1)
+	    connection.close();
+	return fd;
+    }
+
+    /* handleSelect(int *fds, int count, int timeout)
+     * Wait until one of the file descriptors can be read without blocking.
+     * @param a0 the address of an array of file descriptors
+     * @param a1 the number of file descriptors
+     * @param a2 the most ticks to wait, 0 to only check, or -1 to wait
+     * without a limit
+     * @return a readable file descriptor, or -1 on timeout or error
+     */
+    private int handleSelect(int fdsAddr, int count, int timeout) {
+	if (count < 0 || count > maxSelect)
+	    return -1;
+
+	byte[] fdBytes = new byte[count*4];
+	if (readVirtualMemory(fdsAddr, fdBytes) != fdBytes.length)
+	    return -1;
+
+	int[] fds = new int[count];
+	OpenFile[] files = new OpenFile[count];
+	for (int i=0; i<count; i++) {
+	    fds[i] = Lib.bytesToInt(fdBytes, i*4);
+	    files[i] = getOpenFile(fds[i]);
+	    if (files[i] == null)
+		return -1;
+	}
+
+	if (timeout < 0)
+	    timeout = -1;
+
+	int ready = NetKernel.transport.select(files, timeout);
+	return ready == -1 ? -1 : fds[ready];
+    }
+
+    /* handleReceive(int port, char *buffer, int size, int timeout)
+     * Take a message from a local port's queue, waiting at most timeout
+     * ticks for one to arrive, and copy its contents into buffer.
+     * @param a0 the local port
+     * @param a1 the address of the buffer
+     * @param a2 the size of the buffer; a longer message is truncated
+     * @param a3 the most ticks to wait, 0 to only check, or -1 to wait
+     * without a limit
+     * @return the number of bytes copied, or -1 if no message arrived in
+     * time or on error
+     */
+    private int handleReceive(int port, int bufAddr, int size, int timeout) {
+	if (port < 0 || port >= MailMessage.portLimit || size < 0)
+	    return -1;
+
+	if (timeout < 0)
+	    timeout = -1;
+
+	MailMessage mail = NetKernel.postOffice.receive(port, timeout);
+	if (mail == null)
+	    return -1;
+
+	int length = Math.min(size, mail.contentsLength);
+	int copied = writeVirtualMemory(bufAddr, mail.packet.packetBytes,
+					MailMessage.contentsOffset, length);
+	mail.recycle();
+
+	return copied == length ? length : -1;
+    }
+
     private static final int
 	syscallConnect = 11,
-	syscallAccept = 12;
+	syscallAccept = 12,
+	syscallSelect = 17,
+	syscallTryReceive = 19,
+	syscallReceive = 20;
+
+    private static final int maxSelect = 256;
     
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -28,6 +137,9 @@ public class NetProcess extends VMProcess {
      * <tr><td>syscall#</td><td>syscall prototype</td></tr>
      * <tr><td>11</td><td><tt>int  connect(int host, int port);</tt></td></tr>
      * <tr><td>12</td><td><tt>int  accept(int port);</tt></td></tr>
+     * <tr><td>17</td><td><tt>int  select(int *fds, int count, int timeout);</tt></td></tr>
+     * <tr><td>19</td><td><tt>int  tryreceive(int port, char *buffer, int size);</tt></td></tr>
+     * <tr><td>20</td><td><tt>int  receive(int port, char *buffer, int size, int timeout);</tt></td></tr>
      * </table>
      * 
      * @param	syscall	the syscall number.
@@ -39,6 +151,17 @@ public class NetProcess extends VMProcess {
      */
     public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
 	switch (syscall) {
+	case syscallConnect:
+	    return handleConnect(a0, a1);
+	case syscallAccept:
+	    return handleAccept(a0);
+	case syscallSelect:
+	    return handleSelect(a0, a1, a2);
+	case syscallTryReceive:
+	    return handleReceive(a0, a1, a2, 0);
+	case syscallReceive:
+	    return handleReceive(a0, a1, a2, a3);
+
 	default:
 	    return super.handleSyscall(syscall, a0, a1, a2, a3);
 	}
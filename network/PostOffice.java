@@ -3,6 +3,11 @@ package nachos.network;
 import nachos.machine.*;
 import nachos.threads.*;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
 /**
  * A collection of message queues, one for each local port. A
  * <tt>PostOffice</tt> interacts directly with the network hardware. Because
@@ -11,24 +16,36 @@ import nachos.threads.*;
  *
  * <p>
  * The post office uses a "postal worker" thread to wait for messages to arrive
- * from the network and to place them in the appropriate queues. This cannot
- * be done in the receive interrupt handler because each queue (implemented
- * with a <tt>SynchList</tt>) is protected by a lock.
+ * from the network and to place them in the appropriate queues. A thread can
+ * wait for mail on one port, or with <tt>select()</tt> on several ports at
+ * once, and a wait can be given a time limit. Each message that arrives
+ * wakes at most one waiting thread.
+ *
+ * <p>
+ * If <tt>PostOffice.coalesceTicks</tt> is positive, small messages are not
+ * sent right away. Messages to the same host are collected into a bundle
+ * that is sent as one packet when it is full or when its oldest message has
+ * waited <tt>PostOffice.coalesceTicks</tt>, whichever comes first. Bundles
+ * are taken apart again on arrival, so the receiver sees the original
+ * messages.
  */
 public class PostOffice {
     /**
-     * Allocate a new post office, using an array of <tt>SynchList</tt>s.
+     * Allocate a new post office, with a message queue for each port.
      * Register the interrupt handlers with the network hardware and start the
      * "postal worker" thread.
      */
     public PostOffice() {
-	messageReceived = new Semaphore(0);
-	messageSent = new Semaphore(0);
-	sendLock = new Lock();
+	messageReceived = new Semaphore(0, "PostOffice.messageReceived");
+	messageSent = new Semaphore(0, "PostOffice.messageSent");
+	sendLock = new Lock("PostOffice.sendLock");
 
-	queues = new SynchList[MailMessage.portLimit];
-	for (int i=0; i<queues.length; i++)
-	    queues[i] = new SynchList();
+	queues = new ArrayList<LinkedList<MailMessage>>(MailMessage.portLimit);
+	waiters = new ArrayList<LinkedList<Waiter>>(MailMessage.portLimit);
+	for (int i=0; i<MailMessage.portLimit; i++) {
+	    queues.add(new LinkedList<MailMessage>());
+	    waiters.add(new LinkedList<Waiter>());
+	}
 
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -44,21 +61,62 @@ public class PostOffice {
 	    });
 
 	t.fork();
+
+	coalesceTicks = Config.getInteger("PostOffice.coalesceTicks", 0);
+	if (coalesceTicks > 0) {
+	    KThread flusher = new KThread(new Runnable() {
+		    public void run() { bundleFlusher(); }
+		});
+
+	    flusher.setName("bundle flusher").fork();
+	}
     }
 
     /**
-     * Retrieve a message on the specified port, waiting if necessary.
+     * Retrieve a message on the specified port, waiting if necessary. If
+     * <tt>NetworkLink.pooledBuffers</tt> is set, the caller must
+     * <tt>recycle()</tt> the message once it is done with the contents.
      *
      * @param	port	the port on which to wait for a message.
      *
      * @return	the message received.
      */
     public MailMessage receive(int port) {
-	Lib.assertTrue(port >= 0 && port < queues.length);
+	return receive(port, -1);
+    }
+
+    /**
+     * Retrieve a message on the specified port if one is waiting, without
+     * blocking.
+     *
+     * @param	port	the port to take a message from.
+     * @return	the message, or <tt>null</tt> if there is none.
+     */
+    public MailMessage tryReceive(int port) {
+	return receive(port, 0);
+    }
+
+    /**
+     * Retrieve a message on the specified port, waiting at most
+     * <i>timeout</i> ticks for one to arrive.
+     *
+     * @param	port	the port on which to wait for a message.
+     * @param	timeout	the most ticks to wait, or a negative number to wait
+     *			without a limit.
+     * @return	the message received, or <tt>null</tt> if none arrived in
+     *		time.
+     */
+    public MailMessage receive(int port, long timeout) {
+	Lib.assertTrue(port >= 0 && port < queues.size());
 
 	Lib.debug(dbgNet, "waiting for mail on port " + port);
 
-	MailMessage mail = (MailMessage) queues[port].removeFirst();
+	MailMessage mail = null;
+
+	boolean intStatus = Machine.interrupt().disable();
+	if (waitForMail(new int[] { port }, timeout) == port)
+	    mail = queues.get(port).removeFirst();
+	Machine.interrupt().restore(intStatus);
 
 	if (Lib.test(dbgNet))
 	    System.out.println("got mail on port " + port + ": " + mail);
@@ -66,6 +124,66 @@ public class PostOffice {
 	return mail;
     }
 
+    /**
+     * Wait until mail is waiting on any of the specified ports, or until
+     * <i>timeout</i> ticks have passed. The mail is left in its queue.
+     *
+     * @param	ports	the ports to watch.
+     * @param	timeout	the most ticks to wait, 0 to only check, or a negative
+     *			number to wait without a limit.
+     * @return	a port with mail waiting, or -1 if there is none.
+     */
+    public int select(int[] ports, long timeout) {
+	for (int port : ports)
+	    Lib.assertTrue(port >= 0 && port < queues.size());
+
+	boolean intStatus = Machine.interrupt().disable();
+	int port = waitForMail(ports, timeout);
+	Machine.interrupt().restore(intStatus);
+
+	return port;
+    }
+
+    /**
+     * Wait for mail on any of <i>ports</i>. Interrupts must be disabled.
+     */
+    private int waitForMail(int[] ports, long timeout) {
+	Waiter waiter = null;
+
+	while (true) {
+	    for (int port : ports) {
+		if (!queues.get(port).isEmpty())
+		    return port;
+	    }
+
+	    if (timeout == 0)
+		return -1;
+
+	    if (waiter == null)
+		waiter = new Waiter(timeout);
+	    else if (waiter.expired())
+		return -1;
+
+	    for (int port : ports)
+		waiters.get(port).add(waiter);
+
+	    waiter.sleep();
+
+	    for (int port : ports)
+		waiters.get(port).remove(waiter);
+	}
+    }
+
+    /**
+     * Hand segments to the specified transport instead of queueing them at
+     * their ports.
+     *
+     * @param	transport	the transport that handles segments.
+     */
+    void setTransport(Transport transport) {
+	this.transport = transport;
+    }
+
     /**
      * Wait for incoming messages, and then put them in the correct mailbox.
      */
@@ -75,21 +193,91 @@ public class PostOffice {
 
 	    Packet p = Machine.networkLink().receive();
 
-	    MailMessage mail;
+	    if (p.contentsLength > 0 &&
+		p.packetBytes[Packet.headerLength] == bundleMarker) {
+		unbundle(p);
+		p.recycle();
+		continue;
+	    }
+
+	    // segments carry segmentBit in their source port byte
+	    byte[] bytes = p.packetBytes;
+	    boolean segment = p.contentsLength > 1 &&
+		(bytes[Packet.headerLength+1] & Transport.segmentBit) != 0;
+	    if (segment)
+		bytes[Packet.headerLength+1] &= ~Transport.segmentBit;
 
 	    try {
-		mail = new MailMessage(p);
+		deliver(new MailMessage(p), segment);
 	    }
 	    catch (MalformedPacketException e) {
+		p.recycle();
 		continue;
 	    }
+	}
+    }
 
-	    if (Lib.test(dbgNet))
-		System.out.println("delivering mail to port " + mail.dstPort
-				   + ": " + mail);
+    /**
+     * Put a message in the correct mailbox, or hand it to the transport if it
+     * is a segment.
+     */
+    private void deliver(MailMessage mail, boolean segment) {
+	if (segment) {
+	    if (transport != null)
+		transport.deliver(mail);
+	    mail.recycle();
+	    return;
+	}
+
+	if (Lib.test(dbgNet))
+	    System.out.println("delivering mail to port " + mail.dstPort
+			       + ": " + mail);
+
+	// atomically add message to the mailbox and wake a waiting thread
+	boolean intStatus = Machine.interrupt().disable();
 
-	    // atomically add message to the mailbox and wake a waiting thread
-	    queues[mail.dstPort].add(mail);
+	queues.get(mail.dstPort).add(mail);
+	for (Waiter waiter : waiters.get(mail.dstPort)) {
+	    if (waiter.wake())
+		break;
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Deliver each of the messages in a bundle. A bundle is a packet whose
+     * contents are <tt>bundleMarker</tt> followed by, for each message, its
+     * destination port, source port, contents length and contents.
+     */
+    private void unbundle(Packet p) {
+	byte[] bytes = p.packetBytes;
+	int end = Packet.headerLength + p.contentsLength;
+
+	int offset = Packet.headerLength + 1;
+	while (offset + bundleHeaderLength <= end) {
+	    int dstPort = bytes[offset];
+	    int srcPort = bytes[offset+1] & 0xFF;
+	    int length = bytes[offset+2];
+	    boolean segment = (srcPort & Transport.segmentBit) != 0;
+	    srcPort &= ~Transport.segmentBit;
+	    offset += bundleHeaderLength;
+
+	    if (length < 0 || offset + length > end)
+		return;
+
+	    try {
+		MailMessage mail = new MailMessage(p.dstLink, dstPort,
+						   p.srcLink, srcPort, length);
+		System.arraycopy(bytes, offset, mail.packet.packetBytes,
+				 MailMessage.contentsOffset, length);
+		offset += length;
+
+		deliver(mail, segment);
+	    }
+	    catch (MalformedPacketException e) {
+		return;
+	    }
 	}
     }
 
@@ -102,15 +290,120 @@ public class PostOffice {
     }
 
     /**
-     * Send a message to a mailbox on a remote machine.
+     * Send a message to a mailbox on a remote machine. If coalescing is
+     * enabled and the message is small enough to share a packet, it is added
+     * to the bundle for its destination host instead, and this method returns
+     * without waiting for it to be sent.
      */
     public void send(MailMessage mail) {
 	if (Lib.test(dbgNet))
 	    System.out.println("sending mail: " + mail);
 
+	if (coalesceTicks > 0) {
+	    if (mail.contentsLength <= maxBundledLength) {
+		addToBundle(mail);
+		return;
+	    }
+
+	    // don't let this message overtake smaller ones to the same host
+	    flush(mail.packet.dstLink);
+	}
+
+	transmit(mail.packet);
+    }
+
+    /**
+     * Send every message still waiting in a bundle.
+     */
+    public void flush() {
+	if (coalesceTicks <= 0)
+	    return;
+
+	bundleLock.acquire();
+	Bundle[] waiting = bundles.values().toArray(new Bundle[0]);
+	bundles.clear();
+	bundleLock.release();
+
+	for (Bundle bundle : waiting)
+	    transmit(bundle.toPacket());
+    }
+
+    private void flush(int dstLink) {
+	bundleLock.acquire();
+	Bundle bundle = bundles.remove(dstLink);
+	bundleLock.release();
+
+	if (bundle != null)
+	    transmit(bundle.toPacket());
+    }
+
+    private void addToBundle(MailMessage mail) {
+	int dstLink = mail.packet.dstLink;
+	Bundle full = null;
+
+	bundleLock.acquire();
+
+	Bundle bundle = bundles.get(dstLink);
+	if (bundle != null && !bundle.fits(mail)) {
+	    full = bundles.remove(dstLink);
+	    bundle = null;
+	}
+	if (bundle == null) {
+	    bundle = new Bundle(Machine.timer().getTime() + coalesceTicks);
+	    bundles.put(dstLink, bundle);
+	    bundlesWaiting.wake();
+	}
+	bundle.add(mail);
+
+	bundleLock.release();
+
+	if (full != null)
+	    transmit(full.toPacket());
+    }
+
+    /**
+     * Send each bundle once its oldest message has waited long enough.
+     */
+    private void bundleFlusher() {
+	while (true) {
+	    bundleLock.acquire();
+	    while (bundles.isEmpty())
+		bundlesWaiting.sleep();
+
+	    long deadline = Long.MAX_VALUE;
+	    for (Bundle bundle : bundles.values())
+		deadline = Math.min(deadline, bundle.deadline);
+	    bundleLock.release();
+
+	    long wait = deadline - Machine.timer().getTime();
+	    if (wait > 0)
+		ThreadedKernel.alarm.waitUntil(wait);
+
+	    LinkedList<Bundle> expired = new LinkedList<Bundle>();
+	    long time = Machine.timer().getTime();
+
+	    bundleLock.acquire();
+	    for (Iterator<Bundle> i=bundles.values().iterator(); i.hasNext(); ) {
+		Bundle bundle = i.next();
+		if (bundle.deadline <= time) {
+		    expired.add(bundle);
+		    i.remove();
+		}
+	    }
+	    bundleLock.release();
+
+	    for (Bundle bundle : expired)
+		transmit(bundle.toPacket());
+	}
+    }
+
+    /**
+     * Hand a packet to the network link and wait until it has been sent.
+     */
+    private void transmit(Packet p) {
 	sendLock.acquire();
 
-	Machine.networkLink().send(mail.packet);
+	Machine.networkLink().send(p);
 	messageSent.P();
 
 	sendLock.release();
@@ -125,10 +418,89 @@ public class PostOffice {
 	messageSent.V();
     }
 
-    private SynchList[] queues;
+    private ArrayList<LinkedList<MailMessage>> queues;
+    /** The threads waiting for mail on each port; guarded by disabling
+     *  interrupts, like the queues themselves. */
+    private ArrayList<LinkedList<Waiter>> waiters;
     private Semaphore messageReceived;	// V'd when a message can be dequeued
     private Semaphore messageSent;	// V'd when a message can be queued
     private Lock sendLock;
+    private Transport transport = null;
+
+    private int coalesceTicks;
+    private Lock bundleLock = new Lock("PostOffice.bundleLock");
+    private Condition2 bundlesWaiting =
+	new Condition2(bundleLock, "PostOffice.bundlesWaiting");
+    private HashMap<Integer,Bundle> bundles = new HashMap<Integer,Bundle>();
+
+    /**
+     * Small messages waiting to be sent together to one host.
+     */
+    private static class Bundle {
+	Bundle(long deadline) {
+	    this.deadline = deadline;
+	}
+
+	boolean fits(MailMessage mail) {
+	    return length + bundleHeaderLength + mail.contentsLength
+		<= Packet.maxContentsLength;
+	}
+
+	void add(MailMessage mail) {
+	    messages.add(mail);
+	    length += bundleHeaderLength + mail.contentsLength;
+	}
+
+	/**
+	 * Build the packet carrying this bundle. A bundle holding a single
+	 * message is sent as that message's own packet.
+	 */
+	Packet toPacket() {
+	    Packet first = messages.getFirst().packet;
+	    if (messages.size() == 1)
+		return first;
+
+	    Packet bundle;
+	    try {
+		bundle = new Packet(first.dstLink, first.srcLink, length);
+	    }
+	    catch (MalformedPacketException e) {
+		Lib.assertNotReached();
+		return null;
+	    }
+
+	    byte[] bytes = bundle.packetBytes;
+	    bytes[Packet.headerLength] = bundleMarker;
+
+	    int offset = Packet.headerLength + 1;
+	    for (MailMessage mail : messages) {
+		bytes[offset] = (byte) mail.dstPort;
+		// the source port byte may carry the transport's segment bit
+		bytes[offset+1] = mail.packet.packetBytes[Packet.headerLength+1];
+		bytes[offset+2] = (byte) mail.contentsLength;
+		System.arraycopy(mail.packet.packetBytes,
+				 MailMessage.contentsOffset, bytes,
+				 offset + bundleHeaderLength,
+				 mail.contentsLength);
+		offset += bundleHeaderLength + mail.contentsLength;
+	    }
+
+	    return bundle;
+	}
+
+	long deadline;
+	int length = 1;
+	LinkedList<MailMessage> messages = new LinkedList<MailMessage>();
+    }
+
+    /** Marks a packet as a bundle; never a valid mail port. */
+    private static final byte bundleMarker = (byte) 0xFF;
+    /** The per-message header in a bundle: ports and contents length. */
+    private static final int bundleHeaderLength = 3;
+    /** Messages up to this size are bundled; any two of them fit in one
+     *  packet. */
+    private static final int maxBundledLength =
+	(Packet.maxContentsLength - 1)/2 - bundleHeaderLength;
 
     private static final char dbgNet = 'n';
 }
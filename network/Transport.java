@@ -0,0 +1,417 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * A reliable, connection-oriented transport built on top of the post office.
+ * Each segment travels in the contents of one mail message:
+ *
+ * <pre>
+ *	byte 0		flags (SYN, ACK, FIN, DAT)
+ *	bytes 1-4	sequence number, or the cumulative ACK
+ *	bytes 5-	data (DAT segments only)
+ * </pre>
+ *
+ * <p>
+ * A segment is marked on the wire by setting <tt>segmentBit</tt> in its
+ * source port byte, which no plain mail message can carry, so transport ports
+ * and mailbox ports are separate: a connection on port 5 never sees mail sent
+ * to mailbox 5, and vice versa. The post office hands marked messages to the
+ * transport instead of queueing them at a port. Because the postal worker must never block on a
+ * connection, acknowledgements are sent by a separate "transport sender"
+ * thread, and a "transport timer" thread retransmits whatever has gone
+ * unacknowledged for <tt>Transport.retransmitTicks</tt>.
+ */
+public class Transport {
+    /**
+     * Allocate a new transport on top of the specified post office, and start
+     * its threads.
+     *
+     * @param	postOffice	the post office to send and receive segments
+     *				with.
+     */
+    public Transport(PostOffice postOffice) {
+	this.postOffice = postOffice;
+
+	windowSize = Config.getInteger("Transport.windowSize", 16);
+	retransmitTicks = Config.getInteger("Transport.retransmitTicks", 3000);
+	maxRetransmits = Config.getInteger("Transport.maxRetransmits", 10);
+	Lib.assertTrue(windowSize > 0 && retransmitTicks > 0);
+
+	pending = new ArrayList<LinkedList<int[]>>(MailMessage.portLimit);
+	for (int i=0; i<MailMessage.portLimit; i++)
+	    pending.add(new LinkedList<int[]>());
+
+	postOffice.setTransport(this);
+
+	KThread sender = new KThread(new Runnable() {
+		public void run() { sendControl(); }
+	    });
+	sender.setName("transport sender").fork();
+
+	KThread timer = new KThread(new Runnable() {
+		public void run() { retransmitTimer(); }
+	    });
+	timer.setName("transport timer").fork();
+    }
+
+    /**
+     * Open a connection to the specified port on a remote host, waiting until
+     * the remote host accepts it.
+     *
+     * @param	dstLink	the link address of the remote host.
+     * @param	dstPort	the port on the remote host.
+     * @return	the new connection, or <tt>null</tt> if no local port is free
+     *		or the remote host never accepted the connection.
+     */
+    public Connection connect(int dstLink, int dstPort) {
+	Connection connection = null;
+
+	lock.acquire();
+	for (int port=MailMessage.portLimit-1; port>=0; port--) {
+	    if (!portInUse(port)) {
+		connection = new Connection(this, port, dstLink, dstPort, false);
+		connections.put(key(connection), connection);
+		break;
+	    }
+	}
+	lock.release();
+
+	if (connection == null || !connection.connect())
+	    return null;
+
+	return connection;
+    }
+
+    /**
+     * Accept a connection request waiting on the specified local port.
+     * Returns immediately if there is none.
+     *
+     * @param	port	the local port.
+     * @return	the new connection, or <tt>null</tt> if no request is waiting.
+     */
+    public Connection accept(int port) {
+	Lib.assertTrue(port >= 0 && port < pending.size());
+
+	lock.acquire();
+	int[] request = pending.get(port).poll();
+	Connection connection = null;
+	if (request != null) {
+	    connection = new Connection(this, port, request[0], request[1],
+					true);
+	    connections.put(key(connection), connection);
+	}
+	lock.release();
+
+	if (connection != null) {
+	    // answer the request the same way as a repeated SYN
+	    connection.receive(SYN, 0, null);
+	}
+
+	return connection;
+    }
+
+    /**
+     * Wait until one of the specified files can be read without blocking, or
+     * until <i>timeout</i> ticks have passed. A connection is readable when
+     * data has arrived or the connection has closed; any other file is
+     * always readable.
+     *
+     * @param	files	the files to watch.
+     * @param	timeout	the most ticks to wait, 0 to only check, or a negative
+     *			number to wait without a limit.
+     * @return	the index in <i>files</i> of a readable file, or -1 if none
+     *		became readable in time.
+     */
+    public int select(OpenFile[] files, long timeout) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Waiter waiter = null;
+	int ready = -1;
+
+	while (true) {
+	    for (int i=0; i<files.length && ready == -1; i++) {
+		if (!(files[i] instanceof Connection) ||
+		    ((Connection) files[i]).isReadable())
+		    ready = i;
+	    }
+
+	    if (ready != -1 || timeout == 0)
+		break;
+
+	    if (waiter == null)
+		waiter = new Waiter(timeout);
+	    else if (waiter.expired())
+		break;
+
+	    // every file is a connection, or it would have been readable
+	    for (OpenFile file : files)
+		((Connection) file).selectors.add(waiter);
+	    waiter.sleep();
+	    for (OpenFile file : files)
+		((Connection) file).selectors.remove(waiter);
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return ready;
+    }
+
+    /**
+     * Take a segment the post office received. Called by the postal worker;
+     * must not block.
+     *
+     * @param	mail	the segment, with <tt>segmentBit</tt> already cleared
+     *			from its source port.
+     */
+    void deliver(MailMessage mail) {
+	if (mail.contentsLength < headerLength)
+	    return;
+
+	byte[] bytes = mail.packet.packetBytes;
+	int flags = bytes[MailMessage.contentsOffset];
+	int seq = Lib.bytesToInt(bytes, MailMessage.contentsOffset+1);
+	int srcLink = mail.packet.srcLink;
+
+	lock.acquire();
+	Connection connection =
+	    connections.get(key(mail.dstPort, srcLink, mail.srcPort));
+
+	if (connection == null) {
+	    if (flags == SYN)
+		request(mail.dstPort, srcLink, mail.srcPort);
+	    else if (flags == FIN)
+		// we already closed; let the remote end finish too
+		finishClosed(mail);
+	}
+	lock.release();
+
+	if (connection != null)
+	    connection.receive(flags, seq, mail);
+    }
+
+    private void request(int port, int srcLink, int srcPort) {
+	for (int[] request : pending.get(port)) {
+	    if (request[0] == srcLink && request[1] == srcPort)
+		return;
+	}
+
+	if (pending.get(port).size() < maxPending)
+	    pending.get(port).add(new int[] { srcLink, srcPort });
+    }
+
+    private void finishClosed(MailMessage fin) {
+	try {
+	    MailMessage reply = new MailMessage(fin.packet.srcLink, fin.srcPort,
+						fin.packet.dstLink, fin.dstPort,
+						headerLength);
+
+	    // copy the header, sequence number included, and add the ACK
+	    System.arraycopy(fin.packet.packetBytes, MailMessage.contentsOffset,
+			     reply.packet.packetBytes,
+			     MailMessage.contentsOffset, headerLength);
+	    reply.packet.packetBytes[MailMessage.contentsOffset] = FIN|ACK;
+	    mark(reply);
+
+	    outbox.add(reply);
+	    outboxReady.wake();
+	}
+	catch (MalformedPacketException e) {
+	    Lib.assertNotReached();
+	}
+    }
+
+    /**
+     * Build a segment for the specified connection.
+     */
+    MailMessage segment(Connection connection, int flags, int seq,
+			byte[] data, int offset, int length) {
+	Lib.assertTrue(length >= 0 && length <= maxSegmentData);
+
+	MailMessage segment;
+	try {
+	    segment = new MailMessage(connection.remoteLink,
+				      connection.remotePort,
+				      Machine.networkLink().getLinkAddress(),
+				      connection.localPort,
+				      headerLength + length);
+	}
+	catch (MalformedPacketException e) {
+	    Lib.assertNotReached();
+	    return null;
+	}
+
+	byte[] bytes = segment.packet.packetBytes;
+	bytes[MailMessage.contentsOffset] = (byte) flags;
+	Lib.bytesFromInt(bytes, MailMessage.contentsOffset+1, seq);
+	if (length > 0)
+	    System.arraycopy(data, offset, bytes,
+			     MailMessage.contentsOffset + headerLength, length);
+
+	mark(segment);
+	return segment;
+    }
+
+    /**
+     * Mark a message as a segment by setting <tt>segmentBit</tt> in the
+     * source port byte of its packet.
+     */
+    private static void mark(MailMessage segment) {
+	segment.packet.packetBytes[Packet.headerLength+1] |= segmentBit;
+    }
+
+    /**
+     * Send a segment, waiting until the network link accepts it.
+     */
+    void send(MailMessage segment) {
+	postOffice.send(segment);
+    }
+
+    /**
+     * Have the sender thread send the control segments the specified
+     * connection is waiting to send. Called with the connection's lock held.
+     */
+    void schedule(Connection connection) {
+	if (connection.queued)
+	    return;
+
+	connection.queued = true;
+
+	lock.acquire();
+	outbox.add(connection);
+	outboxReady.wake();
+	lock.release();
+    }
+
+    /**
+     * Tell the timer thread a segment is waiting to be acknowledged.
+     */
+    void startTimer() {
+	lock.acquire();
+	timerNeeded = true;
+	timerReady.wake();
+	lock.release();
+    }
+
+    /**
+     * Forget a connection that has closed or died.
+     */
+    void remove(Connection connection) {
+	lock.acquire();
+	Object key = key(connection);
+	if (connections.get(key) == connection)
+	    connections.remove(key);
+	lock.release();
+    }
+
+    private void sendControl() {
+	while (true) {
+	    lock.acquire();
+	    while (outbox.isEmpty())
+		outboxReady.sleep();
+	    Object next = outbox.removeFirst();
+	    lock.release();
+
+	    if (next instanceof MailMessage) {
+		postOffice.send((MailMessage) next);
+	    }
+	    else {
+		LinkedList<MailMessage> segments =
+		    ((Connection) next).takeControl();
+
+		for (MailMessage segment : segments) {
+		    postOffice.send(segment);
+		    if (segment.packet.packetBytes[MailMessage.contentsOffset]
+			== FIN)
+			startTimer();
+		}
+	    }
+	}
+    }
+
+    private void retransmitTimer() {
+	while (true) {
+	    lock.acquire();
+	    while (!timerNeeded)
+		timerReady.sleep();
+	    timerNeeded = false;
+	    Connection[] active =
+		connections.values().toArray(new Connection[0]);
+	    lock.release();
+
+	    ThreadedKernel.alarm.waitUntil(Math.max(retransmitTicks/2, 1));
+
+	    boolean waiting = false;
+	    LinkedList<MailMessage> segments = new LinkedList<MailMessage>();
+	    for (Connection connection : active) {
+		if (connection.retransmit(segments))
+		    waiting = true;
+	    }
+
+	    for (MailMessage segment : segments) {
+		Lib.debug(dbgNet, "retransmitting " + segment);
+		postOffice.send(segment);
+	    }
+
+	    if (waiting)
+		startTimer();
+	}
+    }
+
+    private boolean portInUse(int port) {
+	for (Connection connection : connections.values()) {
+	    if (connection.localPort == port)
+		return true;
+	}
+
+	return false;
+    }
+
+    private static Integer key(Connection connection) {
+	return key(connection.localPort, connection.remoteLink,
+		   connection.remotePort);
+    }
+
+    private static Integer key(int localPort, int remoteLink, int remotePort) {
+	return (localPort << 16) | ((remoteLink & 0xFF) << 8) | remotePort;
+    }
+
+    /** Segment flags. */
+    static final int SYN = 1, ACK = 2, FIN = 4, DAT = 8;
+
+    /** Set in the source port byte of every segment; never part of a valid
+     *  mail port. */
+    static final int segmentBit = MailMessage.portLimit;
+    /** The length of the segment header. */
+    static final int headerLength = 5;
+    /** The most data one segment can carry. */
+    static final int maxSegmentData = MailMessage.maxContentsLength -
+	headerLength;
+
+    final int windowSize, retransmitTicks, maxRetransmits;
+
+    private PostOffice postOffice;
+
+    private Lock lock = new Lock("Transport.lock");
+    private HashMap<Integer,Connection> connections =
+	new HashMap<Integer,Connection>();
+    private ArrayList<LinkedList<int[]>> pending;
+
+    /** Connections with control segments to send, and replies on behalf of
+     *  connections that no longer exist. */
+    private LinkedList<Object> outbox = new LinkedList<Object>();
+    private Condition2 outboxReady =
+	new Condition2(lock, "Transport.outboxReady");
+
+    private boolean timerNeeded = false;
+    private Condition2 timerReady =
+	new Condition2(lock, "Transport.timerReady");
+
+    private static final int maxPending = 16;
+
+    private static final char dbgNet = 'n';
+}
@@ -0,0 +1,65 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A thread waiting, possibly with a time limit, for something to happen on
+ * any of several queues. The waiter is put on each queue while its thread
+ * sleeps, and whichever event comes first wakes it; a waiter is only ever
+ * woken once per sleep, however many events arrive. All methods must be
+ * called with interrupts disabled.
+ */
+class Waiter {
+    /**
+     * Allocate a waiter for the current thread.
+     *
+     * @param	timeout	the most ticks to wait in total, or a negative number
+     *			to wait without a limit.
+     */
+    Waiter(long timeout) {
+	thread = KThread.currentThread();
+	timed = timeout >= 0;
+	deadline = Machine.timer().getTime() + timeout;
+    }
+
+    /**
+     * Return whether the time limit of this waiter has passed.
+     */
+    boolean expired() {
+	return timed && Machine.timer().getTime() >= deadline;
+    }
+
+    /**
+     * Put the current thread to sleep until <tt>wake()</tt> is called or the
+     * time limit passes.
+     */
+    void sleep() {
+	Lib.assertTrue(KThread.currentThread() == thread);
+
+	woken = false;
+	if (timed)
+	    ThreadedKernel.alarm.wakeAt(thread, deadline);
+
+	KThread.sleep();
+    }
+
+    /**
+     * Wake the thread, unless something else already did.
+     *
+     * @return	<tt>true</tt> if this call woke the thread.
+     */
+    boolean wake() {
+	if (woken || (timed && !ThreadedKernel.alarm.cancel(thread)))
+	    return false;
+
+	woken = true;
+	thread.ready();
+	return true;
+    }
+
+    private KThread thread;
+    private boolean timed;
+    private long deadline;
+    private boolean woken = true;
+}
@@ -149,6 +149,18 @@ public abstract class Privilege {
 	 * @param	handler	the interrupt handler to call.
 	 */
 	public void schedule(long when, String type, Runnable handler);
+
+	/**
+	 * Raise an interrupt from a host thread outside the simulation, such
+	 * as one blocked waiting for host input. The interrupt occurs at the
+	 * next tick. Unlike <tt>schedule()</tt>, this may be called from any
+	 * thread.
+	 *
+	 * @param	type	a name for the type of interrupt being
+	 *			raised.
+	 * @param	handler	the interrupt handler to call.
+	 */
+	public void post(String type, Runnable handler);
 	
 	/**
 	 * Advance the simulated time.
@@ -67,3 +67,11 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(readv, syscallReadv)
+	SYSCALLSTUB(writev, syscallWritev)
+	SYSCALLSTUB(munmap, syscallMunmap)
+	SYSCALLSTUB(sbrk, syscallSbrk)
+	SYSCALLSTUB(select, syscallSelect)
+	SYSCALLSTUB(creatsized, syscallCreateSized)
+	SYSCALLSTUB(tryreceive, syscallTryReceive)
+	SYSCALLSTUB(receive, syscallReceive)
@@ -25,6 +25,14 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallReadv		13
+#define syscallWritev		14
+#define syscallMunmap		15
+#define syscallSbrk		16
+#define syscallSelect		17
+#define syscallCreateSized	18
+#define syscallTryReceive	19
+#define syscallReceive		20
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -130,6 +138,14 @@ int join(int processID, int *status);
  */
 int creat(char *name);
 
+/**
+ * Like creat(), but size is the number of bytes the file is expected to grow
+ * to. If the file is created, a file system that supports it allocates space
+ * for size bytes at once, so that the file can be written sequentially
+ * without allocating. The file's length is still 0.
+ */
+int creatsized(char *name, int size);
+
 /**
  * Attempt to open the named file and return a file descriptor.
  *
@@ -181,6 +197,34 @@ int read(int fileDescriptor, void *buffer, int count);
  */
 int write(int fileDescriptor, void *buffer, int count);
 
+/**
+ * One buffer of a readv() or writev() request: len bytes starting at base.
+ */
+struct iovec {
+    void *base;
+    int len;
+};
+
+/**
+ * Like read(), but scatters the data into the iovcnt buffers described by
+ * iov, filling each buffer before moving on to the next. The whole request is
+ * a single read of the file or stream.
+ *
+ * On success, the total number of bytes read is returned. On error, -1 is
+ * returned; this can also happen if iovcnt is negative or too large, or if
+ * any iov[i].len is negative.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Like write(), but gathers the data from the iovcnt buffers described by
+ * iov, in order. The whole request is a single write to the file or stream.
+ *
+ * On success, the total number of bytes written is returned. Errors are as
+ * for write() and readv().
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
 /**
  * Close a file descriptor, so that it no longer refers to any file or stream
  * and may be reused.
@@ -215,19 +259,39 @@ int close(int fileDescriptor);
 int unlink(char *name);
 
 /**
- * Map the file referenced by fileDescriptor into memory at address. The file
- * may be as large as 0x7FFFFFFF bytes.
- * 
- * To maintain consistency, further calls to read() and write() on this file
- * descriptor will fail (returning -1) until the file descriptor is closed.
+ * Move the end of the heap by increment bytes; a negative increment shrinks
+ * the heap. The heap starts out empty, just past the program's arguments.
+ * New heap memory reads as zeroes, and only takes up physical memory once it
+ * is written.
  *
- * When the file descriptor is closed, all remaining dirty pages of the map
- * will be flushed to disk and the map will be removed.
+ * Returns the previous end of the heap, so sbrk(0) returns the current end,
+ * or (void *) -1 if the heap cannot be moved that far.
+ */
+void *sbrk(int increment);
+
+/**
+ * Map the file referenced by fileDescriptor into memory at address, which
+ * must be page-aligned and must not overlap memory already in use. Pages of
+ * the file are read in when they are first touched; the part of the last page
+ * past the end of the file reads as zeroes.
  *
- * Returns the length of the file on success, or -1 if an error occurred.
+ * The map stays in place after fileDescriptor is closed. It is removed by
+ * munmap() or when the process exits, and at that point all dirty pages of
+ * the map are written back to the file. The file does not grow.
+ *
+ * Returns the length of the file on success, or -1 if the file is empty or an
+ * error occurred.
  */
 int mmap(int fileDescriptor, char *address);
 
+/**
+ * Remove the map created by mmap() at address, writing its dirty pages back
+ * to the file.
+ *
+ * Returns 0 on success, or -1 if no map starts at address.
+ */
+int munmap(char *address);
+
 /**
  * Attempt to initiate a new connection to the specified port on the specified
  * remote host, and return a new file descriptor referring to the connection.
@@ -257,6 +321,36 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/**
+ * Wait until one of the count file descriptors in fds can be read without
+ * blocking: a connection is readable once data has arrived or the connection
+ * has closed, and any other file is always readable. Waits at most timeout
+ * ticks, or without a limit if timeout is -1; a timeout of 0 only checks.
+ *
+ * Returns a readable file descriptor from fds, or -1 if none became readable
+ * in time or an error occurred.
+ */
+int select(int *fds, int count, int timeout);
+
+/**
+ * Take the oldest message waiting on the specified local port and copy its
+ * contents into buffer, truncating them to size bytes. Does not wait for a
+ * message to arrive.
+ *
+ * Returns the number of bytes copied, or -1 if no message is waiting or an
+ * error occurred.
+ */
+int tryreceive(int port, char *buffer, int size);
+
+/**
+ * Like tryreceive(), but wait at most timeout ticks for a message to arrive,
+ * or without a limit if timeout is -1; a timeout of 0 only checks.
+ *
+ * Returns the number of bytes copied, or -1 if no message arrived in time or
+ * an error occurred.
+ */
+int receive(int port, char *buffer, int size, int timeout);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
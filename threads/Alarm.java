@@ -1,7 +1,7 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.LinkedList;
+import java.util.HashMap;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
@@ -16,7 +16,6 @@ public class Alarm {
      * alarm.
      */
     public Alarm() {
-	waitingThreads = new LinkedList<newWaitThread>();
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
 	    });
@@ -24,28 +23,38 @@ public class Alarm {
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * periodically (approximately every 500 clock ticks). Wakes the sleeping
+     * threads whose time has come, then causes the current thread to yield,
+     * forcing a context switch, if another thread is ready to run and the
+     * scheduler says so; normally once the current thread has used up its
+     * time slice.
+     *
+     * @see	nachos.threads.Scheduler#shouldPreempt
      */
     public void timerInterrupt() {
-	long wakeTime = Machine.timer().getTime();
-	/*
-	* code for checking the state of the sleeping threads
-	*/
-	LinkedList<newWaitThread> list = new LinkedList<newWaitThread>();
-	list = (LinkedList)waitingThreads.clone();
-	if(!waitingThreads.isEmpty()){// do nothing if waitQueue is empty
-	    for(newWaitThread next : list){//iterate over the list
-		// needs optimizing, probably sorting the list would make it much faster
-		// current solution iterates over the whole list every time
-		if(next.getTime()<=wakeTime){//if wake time has passed remove from the waitQueue and add to the ready Queue
-			waitingThreads.remove(next);
-			next.getThread().ready();
-		}
+	long time = Machine.timer().getTime();
+
+	// the sleepers are in a heap, so only the ones due are looked at
+	while (size > 0 && heap[0].time <= time) {
+	    Sleeper sleeper = heap[0];
+	    removeAt(0);
+	    sleepers.remove(sleeper.thread);
+
+	    // a thread that was given access in the meantime has been woken
+	    // already
+	    if (sleeper.waitQueue != null) {
+		if (!sleeper.waitQueue.remove(sleeper.thread))
+		    continue;
+		sleeper.timedOut = true;
 	    }
+
+	    sleeper.thread.ready();
 	}
-	KThread.currentThread().yield();
+
+	// a lone thread keeps running; there is no one to switch to
+	if (!KThread.readyQueueEmpty() &&
+	    ThreadedKernel.scheduler.shouldPreempt(KThread.currentThread()))
+	    KThread.yield();
     }
 
     /**
@@ -63,33 +72,172 @@ public class Alarm {
      * @see	nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-	// for now, cheat just to get something working (busy waiting is bad)
-	long wakeTime = Machine.timer().getTime() + x;
-	/*while (wakeTime > Machine.timer().getTime())
-	    KThread.yield();*/
-	boolean intStatus = Machine.interrupt().disable();//disable interrupts
-	waitingThreads.add(new newWaitThread(wakeTime,KThread.currentThread()));//add thread to waiting Queue
-	KThread.currentThread().sleep();//sleep current Thread
-	Machine.interrupt().restore(intStatus);//restores interruptions
+	boolean intStatus = Machine.interrupt().disable();
+
+	wakeAt(KThread.currentThread(), Machine.timer().getTime() + x);
+	KThread.sleep();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Arrange for <i>thread</i>, which is about to sleep, to be placed in the
+     * ready set during the first timer interrupt at or after <i>wakeTime</i>,
+     * unless <tt>cancel()</tt> is called first. This puts a bound on waits
+     * that may also end some other way. A thread can only have one wakeup
+     * pending at a time. Interrupts must be disabled.
+     *
+     * @param	thread		the thread to wake.
+     * @param	wakeTime	the time to wake it at.
+     */
+    public void wakeAt(KThread thread, long wakeTime) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	schedule(thread, wakeTime);
+    }
+
+    /**
+     * Put the current thread, which has just been added to <i>waitQueue</i>,
+     * to sleep until it is given access and woken, or until <i>timeout</i>
+     * ticks have passed. On a timeout the thread is taken off
+     * <i>waitQueue</i> again, so that it is never given access after it has
+     * stopped waiting. Interrupts must be disabled.
+     *
+     * @param	waitQueue	the queue the current thread is waiting on.
+     * @param	timeout		the minimum number of ticks to wait before
+     *				giving up.
+     * @return	<tt>true</tt> if the thread was given access, or
+     *		<tt>false</tt> if it timed out.
+     */
+    public boolean sleepOn(ThreadQueue waitQueue, long timeout) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	KThread thread = KThread.currentThread();
+	Sleeper sleeper = schedule(thread, Machine.timer().getTime() + timeout);
+	sleeper.waitQueue = waitQueue;
+
+	KThread.sleep();
+
+	if (sleeper.timedOut)
+	    return false;
+
+	cancel(thread);
+	return true;
+    }
+
+    private Sleeper schedule(KThread thread, long wakeTime) {
+	Lib.assertTrue(!sleepers.containsKey(thread));
+
+	if (size == heap.length) {
+	    Sleeper[] larger = new Sleeper[size*2];
+	    System.arraycopy(heap, 0, larger, 0, size);
+	    heap = larger;
+	}
+
+	Sleeper sleeper = new Sleeper(wakeTime, nextOrder++, thread);
+	sleepers.put(thread, sleeper);
+	heap[size] = sleeper;
+	sleeper.index = size;
+	siftUp(size++);
+
+	return sleeper;
     }
-	/*
-	* New type of thread, includes wake time, so that we 
-	* know when to wake the thread
-	*/
-    private class newWaitThread{
-	// two parameters, wake time and the sleeping thread
-	private long time;
- 	private KThread thread;
-	public newWaitThread(long wait,KThread wthread){
-	    this.time = wait;	
-	    this.thread = wthread;
+
+    /**
+     * Cancel a <tt>wakeAt()</tt> for <i>thread</i>. Interrupts must be
+     * disabled.
+     *
+     * @param	thread	the thread that was to be woken.
+     * @return	<tt>true</tt> if the thread had not been woken yet, and now
+     *		will not be; <tt>false</tt> if the alarm already woke it.
+     */
+    public boolean cancel(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Sleeper sleeper = sleepers.remove(thread);
+	if (sleeper == null)
+	    return false;
+
+	removeAt(sleeper.index);
+	return true;
+    }
+
+    private void removeAt(int i) {
+	size--;
+	if (i != size) {
+	    heap[i] = heap[size];
+	    heap[i].index = i;
+	    heap[size] = null;
+	    siftDown(i);
+	    siftUp(i);
 	}
-	public long getTime(){
-	    return time;
+	else {
+	    heap[size] = null;
 	}
-	public KThread getThread(){
-	    return thread;
+    }
+
+    private void siftUp(int i) {
+	Sleeper sleeper = heap[i];
+	while (i > 0) {
+	    int parent = (i-1)/2;
+	    if (!sleeper.before(heap[parent]))
+		break;
+	    heap[i] = heap[parent];
+	    heap[i].index = i;
+	    i = parent;
 	}
+	heap[i] = sleeper;
+	sleeper.index = i;
     }
-    private LinkedList<newWaitThread> waitingThreads=null;//queue used for storing sleeping threads
+
+    private void siftDown(int i) {
+	Sleeper sleeper = heap[i];
+	while (true) {
+	    int child = 2*i + 1;
+	    if (child >= size)
+		break;
+	    if (child+1 < size && heap[child+1].before(heap[child]))
+		child++;
+	    if (!heap[child].before(sleeper))
+		break;
+	    heap[i] = heap[child];
+	    heap[i].index = i;
+	    i = child;
+	}
+	heap[i] = sleeper;
+	sleeper.index = i;
+    }
+
+    /**
+     * A sleeping thread and the time to wake it. Threads due at the same
+     * time are woken in the order they went to sleep.
+     */
+    private static class Sleeper {
+	Sleeper(long time, long order, KThread thread) {
+	    this.time = time;
+	    this.order = order;
+	    this.thread = thread;
+	}
+
+	boolean before(Sleeper other) {
+	    return time < other.time ||
+		(time == other.time && order < other.order);
+	}
+
+	long time, order;
+	KThread thread;
+	/** This sleeper's position in the heap. */
+	int index;
+	/** For <tt>sleepOn()</tt>, the queue to take the thread off if it
+	 *  times out, and whether it did. */
+	ThreadQueue waitQueue = null;
+	boolean timedOut = false;
+    }
+
+    /** A binary min-heap of sleepers, ordered by wake time. */
+    private Sleeper[] heap = new Sleeper[16];
+    private int size = 0;
+    private long nextOrder = 0;
+    /** The pending wakeup of each sleeping thread, for <tt>cancel()</tt>. */
+    private HashMap<KThread,Sleeper> sleepers = new HashMap<KThread,Sleeper>();
 }
@@ -0,0 +1,244 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+
+/**
+ * A bounded, first-in first-out message queue between any number of sending
+ * and receiving threads. <tt>send()</tt> returns once at most
+ * <i>capacity</i> messages, its own included, are waiting to be received, so
+ * a channel of capacity 0 is a rendezvous: the sender waits until a receiver
+ * has taken the message.
+ *
+ * <p>
+ * Waiting threads are woken one at a time: a message wakes a single
+ * receiver, and a receive wakes only the sender whose message it brought
+ * within the capacity. Senders are released in the order they sent.
+ *
+ * @see	nachos.threads.Communicator
+ */
+public class Channel<T> {
+    /**
+     * Allocate a new, empty channel.
+     *
+     * @param	capacity	the number of messages that can be waiting
+     *				without holding up their senders.
+     */
+    public Channel(int capacity) {
+	Lib.assertTrue(capacity >= 0);
+
+	this.capacity = capacity;
+    }
+
+    /**
+     * Send a message, waiting while the channel is full.
+     *
+     * @param	message	the message to send.
+     */
+    public void send(T message) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	deposit(message);
+	waitForRoom(sent - 1);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Send several messages, in order, waiting once until they all fit in
+     * the channel. Messages from other senders are not interleaved with
+     * them.
+     *
+     * @param	messages	the messages to send.
+     */
+    public void sendAll(Collection<? extends T> messages) {
+	if (messages.isEmpty())
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (T message : messages)
+	    deposit(message);
+	waitForRoom(sent - 1);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Receive the oldest message, waiting until there is one.
+     *
+     * @return	the message.
+     */
+    public T receive() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	waitForMessage();
+	T message = buffer.removeFirst();
+	taken(1);
+
+	Machine.interrupt().restore(intStatus);
+	return message;
+    }
+
+    /**
+     * Receive every message that is waiting, up to <i>max</i> of them,
+     * waiting first until there is at least one.
+     *
+     * @param	messages	the collection to add the messages to, oldest
+     *				first.
+     * @param	max		the most messages to receive.
+     * @return	the number of messages received.
+     */
+    public int receiveAll(Collection<? super T> messages, int max) {
+	Lib.assertTrue(max > 0);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	waitForMessage();
+	int count = Math.min(max, buffer.size());
+	for (int i=0; i<count; i++)
+	    messages.add(buffer.removeFirst());
+	taken(count);
+
+	Machine.interrupt().restore(intStatus);
+	return count;
+    }
+
+    /**
+     * Add a message to the buffer and wake a receiver for it. A message is
+     * buffered even when the channel is full; its sender then waits until
+     * enough older messages have been taken.
+     */
+    private void deposit(T message) {
+	buffer.add(message);
+	sent++;
+
+	KThread receiver = receivers.nextThread();
+	if (receiver != null)
+	    receiver.ready();
+    }
+
+    /**
+     * Wait until the message with sequence number <i>seq</i> is within the
+     * capacity of the channel.
+     */
+    private void waitForRoom(long seq) {
+	if (seq < taken + capacity)
+	    return;
+
+	senders.add(new BlockedSender(seq, KThread.currentThread()));
+	KThread.sleep();
+    }
+
+    private void waitForMessage() {
+	// another receiver may take the message before a woken one runs; the
+	// message's deposit then woke one receiver too many, not too few
+	while (buffer.isEmpty()) {
+	    receivers.waitForAccess(KThread.currentThread());
+	    KThread.sleep();
+	}
+    }
+
+    /**
+     * Account for <i>count</i> received messages, and release the senders
+     * whose messages are now within the capacity.
+     */
+    private void taken(int count) {
+	taken += count;
+
+	while (!senders.isEmpty() &&
+	       senders.getFirst().seq < taken + capacity)
+	    senders.removeFirst().thread.ready();
+    }
+
+    private static class Sender implements Runnable {
+	Sender(Channel<Integer> channel, int first, int count) {
+	    this.channel = channel;
+	    this.first = first;
+	    this.count = count;
+	}
+
+	public void run() {
+	    for (int i=0; i<count; i++) {
+		channel.send(first + i);
+		sent++;
+	    }
+	}
+
+	private Channel<Integer> channel;
+	private int first, count;
+	/** The number of sends that have returned. */
+	private int sent = 0;
+    }
+
+    private static Sender fork(Channel<Integer> channel, int first,
+			       int count) {
+	Sender sender = new Sender(channel, first, count);
+	new KThread(sender).setName("sender " + first).fork();
+	return sender;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	// a rendezvous holds the sender until its message is received
+	Channel<Integer> rendezvous = new Channel<Integer>(0);
+	Sender sender = fork(rendezvous, 0, 1);
+	ThreadedKernel.alarm.waitUntil(100);
+	Lib.assertTrue(sender.sent == 0);
+	Lib.assertTrue(rendezvous.receive() == 0);
+	ThreadedKernel.alarm.waitUntil(100);
+	Lib.assertTrue(sender.sent == 1);
+
+	// a buffer lets as many sends return as it holds
+	Channel<Integer> buffered = new Channel<Integer>(2);
+	sender = fork(buffered, 0, 3);
+	ThreadedKernel.alarm.waitUntil(100);
+	Lib.assertTrue(sender.sent == 2);
+	ArrayList<Integer> messages = new ArrayList<Integer>();
+	Lib.assertTrue(buffered.receiveAll(messages, 10) == 3);
+	for (int i=0; i<3; i++)
+	    Lib.assertTrue(messages.get(i) == i);
+	ThreadedKernel.alarm.waitUntil(100);
+	Lib.assertTrue(sender.sent == 3);
+
+	// with several senders, every message arrives once, and each
+	// sender's messages arrive in the order sent
+	Channel<Integer> shared = new Channel<Integer>(1);
+	for (int i=0; i<3; i++)
+	    fork(shared, i*10, 10);
+	int[] next = new int[] { 0, 10, 20 };
+	for (int i=0; i<30; i++) {
+	    int message = shared.receive();
+	    Lib.assertTrue(message == next[message/10]++);
+	}
+    }
+
+    private static class BlockedSender {
+	BlockedSender(long seq, KThread thread) {
+	    this.seq = seq;
+	    this.thread = thread;
+	}
+
+	long seq;
+	KThread thread;
+    }
+
+    private int capacity;
+
+    /** Messages sent and not yet received, including those whose senders
+     *  are still waiting. */
+    private LinkedList<T> buffer = new LinkedList<T>();
+    /** The number of messages ever sent, and ever received. */
+    private long sent = 0, taken = 0;
+
+    private ThreadQueue receivers =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+    /** Waiting senders, in the order of their sequence numbers. */
+    private LinkedList<BlockedSender> senders =
+	new LinkedList<BlockedSender>();
+}
@@ -8,20 +8,19 @@ import nachos.machine.*;
  * and multiple threads can be waiting to <i>listen</i>. But there should never
  * be a time when both a speaker and a listener are waiting, because the two
  * threads can be paired off at this point.
+ *
+ * <p>
+ * A communicator is a <tt>Channel</tt> of capacity 0, so each message wakes
+ * just the one listener and the one speaker it concerns.
+ *
+ * @see	nachos.threads.Channel
  */
 public class Communicator {
     /**
      * Allocate a new communicator.
      */
     public Communicator() {
-	this.message=0;
-	this.speakers=0;
-	this.listeners=0;
-	this.activeSpeak=false;
-	this.activeListen=false;
-	this.cLock=new Lock();
-	this.waitingSpeakers =  new Condition2(cLock);
-	this.waitingListeners = new Condition2(cLock);
+	this.channel = new Channel<Integer>(0);
     }
 
     /**
@@ -35,17 +34,7 @@ public class Communicator {
      * @param	word	the integer to transfer.
      */
     public void speak(int word) {
-	cLock.acquire();
-	speakers++;
-	while(listeners==0 || activeSpeak)
-		waitingSpeakers.sleep();
-	activeSpeak=true;
-	this.message = word;	
-	waitingListeners.wakeAll();
-	speakers--;
-
-	activeListen=false;
-	cLock.release();
+	channel.send(word);
     }
 
     /**
@@ -55,22 +44,9 @@ public class Communicator {
      * @return	the integer transferred.
      */    
     public int listen() {
-	cLock.acquire();
-	listeners++;
-	while(activeListen)
-		waitingListeners.sleep();
-	activeListen=true;
-	if(!activeSpeak){	
-		waitingSpeakers.wake();
-		waitingListeners.sleep();}
-	listeners--;
-	int retVal = this.message;
-	waitingSpeakers.wakeAll();
-	activeSpeak=false;
-	cLock.release();
-	return retVal;
-	//return 0;
+	return channel.receive();
     }
+
 	public static class Speak implements Runnable{
 		Speak(int thread, Communicator com) {
 			this.threadNo = thread;
@@ -145,13 +121,5 @@ public class Communicator {
 
     private static final char dbgComm = 'c';
 
-	private int message;
-	private int speakers;
-    	private int listeners;
-	private boolean activeSpeak;
-	private boolean activeListen;
-	private Lock cLock;
-	private Condition2 waitingSpeakers;
-	private Condition2 waitingListeners;
-	
+    private Channel<Integer> channel;
 }
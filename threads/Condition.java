@@ -79,7 +79,7 @@ public class Condition {
     public void sleep() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	Semaphore waiter = new Semaphore(0);
+	Semaphore waiter = new Semaphore(0, "Condition.waiter");
 	waitQueue.add(waiter);
 
 	conditionLock.release();
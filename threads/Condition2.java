@@ -1,7 +1,6 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.LinkedList;
 
 /**
  * An implementation of condition variables that disables interrupt()s for
@@ -10,6 +9,17 @@ import java.util.LinkedList;
  * <p>
  * You must implement this.
  *
+ * <p>
+ * A woken thread still has to reacquire the lock, which the waker holds. If
+ * other threads are already waiting for the lock, the woken thread would
+ * only run to find it busy and go back to sleep, so <tt>wake()</tt> moves it
+ * straight onto the lock's wait queue instead, and it is readied when the
+ * lock is released to it. Otherwise it is readied at once: the waker will
+ * usually have released the lock by the time it runs, and handing it the
+ * lock directly would only hold up the waker if it acquires the lock again
+ * first. <tt>wakeAll()</tt> treats the first thread it wakes this way, and
+ * moves the rest onto the lock's wait queue behind it.
+ *
  * @see	nachos.threads.Condition
  */
 public class Condition2 {
@@ -22,8 +32,22 @@ public class Condition2 {
      *				<tt>wake()</tt>, or <tt>wakeAll()</tt>.
      */
     public Condition2(Lock conditionLock) {
+	this(conditionLock, null);
+    }
+
+    /**
+     * Allocate a new condition variable with a name, under which the time
+     * threads spend sleeping on it is reported if
+     * <tt>ContentionProfiler.enabled</tt> is set.
+     *
+     * @param	conditionLock	the lock associated with this condition
+     *				variable.
+     * @param	name		the name of this condition variable.
+     */
+    public Condition2(Lock conditionLock, String name) {
 	this.conditionLock = conditionLock;
-	this.waitingThreads = new LinkedList<KThread>();
+	this.waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+	this.profile = ContentionProfiler.register("Condition2", name);
     }
 
     /**
@@ -35,13 +59,41 @@ public class Condition2 {
     public void sleep() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 	boolean intStatus = Machine.interrupt().disable();
+	long start = Machine.timer().getTime();
 	conditionLock.release();
-	waitingThreads.add(KThread.currentThread());
+	waitQueue.waitForAccess(KThread.currentThread());
 	KThread.currentThread().sleep();
-	conditionLock.acquire();
+	if (!conditionLock.isHeldByCurrentThread())
+	    conditionLock.acquire();
+	if (profile != null)
+	    profile.waited(null, start);
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Like <tt>sleep()</tt>, but give up waiting once at least <i>ticks</i>
+     * ticks have passed without a <tt>wake()</tt>. Either way, the thread
+     * reacquires the associated lock before <tt>sleepFor()</tt> returns.
+     *
+     * @param	ticks	the minimum number of ticks to wait before giving up.
+     * @return	<tt>true</tt> if the thread was woken by <tt>wake()</tt> or
+     *		<tt>wakeAll()</tt>, or <tt>false</tt> if it timed out.
+     */
+    public boolean sleepFor(long ticks) {
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+	boolean intStatus = Machine.interrupt().disable();
+	long start = Machine.timer().getTime();
+	conditionLock.release();
+	waitQueue.waitForAccess(KThread.currentThread());
+	boolean woken = ThreadedKernel.alarm.sleepOn(waitQueue, ticks);
+	if (!conditionLock.isHeldByCurrentThread())
+	    conditionLock.acquire();
+	if (profile != null)
+	    profile.waited(null, start);
+	Machine.interrupt().restore(intStatus);
+	return woken;
+    }
+
     /**
      * Wake up at most one thread sleeping on this condition variable. The
      * current thread must hold the associated lock.
@@ -49,8 +101,9 @@ public class Condition2 {
     public void wake() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 	boolean intStatus = Machine.interrupt().disable();
-	if(!waitingThreads.isEmpty())
-		((KThread)waitingThreads.removeFirst()).ready();
+	KThread thread = waitQueue.nextThread();
+	if (thread != null)
+	    transfer(thread);
 	Machine.interrupt().restore(intStatus);
     }
 
@@ -60,10 +113,116 @@ public class Condition2 {
      */
     public void wakeAll() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-	while (!waitingThreads.isEmpty())
-	    wake();
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = waitQueue.nextThread();
+	if (thread != null)
+	    transfer(thread);
+	// only one thread can have the lock next, so the rest would only run
+	// to find it busy; they wait for it instead. Each is moved on its own,
+	// since the lock's queue orders and donates per thread
+	while ((thread = waitQueue.nextThread()) != null)
+	    conditionLock.addWaiter(thread);
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Wake a thread taken off the wait queue: move it onto the lock's queue
+     * if it would have to wait there anyway, or else ready it.
+     */
+    private void transfer(KThread thread) {
+	if (conditionLock.hasWaiters())
+	    conditionLock.addWaiter(thread);
+	else
+	    thread.ready();
+    }
+
+    private static class Waker implements Runnable {
+	Waker(Lock lock, Condition2 condition, long delay) {
+	    this.lock = lock;
+	    this.condition = condition;
+	    this.delay = delay;
+	}
+
+	public void run() {
+	    ThreadedKernel.alarm.waitUntil(delay);
+	    lock.acquire();
+	    condition.wake();
+	    lock.release();
+	}
+
+	private Lock lock;
+	private Condition2 condition;
+	private long delay;
+    }
+
+    private static class Sleeper implements Runnable {
+	Sleeper(Lock lock, Condition2 condition, int[] counts) {
+	    this.lock = lock;
+	    this.condition = condition;
+	    this.counts = counts;
+	}
+
+	public void run() {
+	    lock.acquire();
+	    counts[0]++;
+	    condition.sleep();
+	    Lib.assertTrue(lock.isHeldByCurrentThread());
+	    counts[1]++;
+	    lock.release();
+	}
+
+	private Lock lock;
+	private Condition2 condition;
+	/** The number of threads that went to sleep, and that woke. */
+	private int[] counts;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	Lock lock = new Lock();
+	Condition2 condition = new Condition2(lock);
+
+	// wakeAll() wakes every sleeper, each holding the lock in turn
+	int[] counts = new int[2];
+	KThread[] sleepers = new KThread[3];
+	for (int i=0; i<sleepers.length; i++) {
+	    sleepers[i] = new KThread(new Sleeper(lock, condition, counts));
+	    sleepers[i].setName("sleeper " + i).fork();
+	}
+	while (counts[0] < sleepers.length)
+	    ThreadedKernel.alarm.waitUntil(100);
+
+	lock.acquire();
+	condition.wakeAll();
+	Lib.assertTrue(counts[1] == 0);
+	lock.release();
+	for (KThread sleeper : sleepers)
+	    sleeper.join();
+	Lib.assertTrue(counts[1] == sleepers.length);
+
+	lock.acquire();
+
+	// a timed sleep gives up without a wake, still holding the lock
+	long start = Machine.timer().getTime();
+	Lib.assertTrue(!condition.sleepFor(1000));
+	Lib.assertTrue(Machine.timer().getTime() - start >= 1000);
+	Lib.assertTrue(lock.isHeldByCurrentThread());
+
+	// and ends early when woken
+	KThread waker = new KThread(new Waker(lock, condition, 500));
+	waker.setName("waker").fork();
+	Lib.assertTrue(condition.sleepFor(100000));
+	Lib.assertTrue(lock.isHeldByCurrentThread());
+
+	lock.release();
+	waker.join();
     }
 
     private Lock conditionLock;
-    private LinkedList<KThread> waitingThreads=null;
+    /** The threads sleeping on this condition variable. A timed sleeper that
+     *  gives up is taken off again by the alarm. */
+    private ThreadQueue waitQueue;
+    private ContentionProfiler.Profile profile;
 }
@@ -0,0 +1,155 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Records how often locks, semaphores and condition variables make threads
+ * wait, and for how long, and prints a report after the statistics when
+ * Nachos halts. Profiling is off unless <tt>ContentionProfiler.enabled</tt>
+ * is set, and then costs nothing more than a <tt>null</tt> check.
+ *
+ * <p>
+ * Each primitive is profiled under its kind and the name it was given when
+ * it was allocated; primitives with the same name, such as the locks of
+ * every instance of a class, are counted together. Unnamed primitives are
+ * profiled one by one and numbered. The report lists the
+ * <tt>ContentionProfiler.reportLimit</tt> primitives that kept threads
+ * waiting longest.
+ *
+ * @see	nachos.threads.Lock#Lock(String)
+ * @see	nachos.threads.Semaphore#Semaphore(int,String)
+ * @see	nachos.threads.Condition2#Condition2(Lock,String)
+ */
+public class ContentionProfiler {
+    /**
+     * Return the profile to record a new primitive's contention in.
+     *
+     * @param	kind	the kind of primitive, such as <tt>"Lock"</tt>.
+     * @param	name	the primitive's name, or <tt>null</tt> if it has none.
+     * @return	the profile, or <tt>null</tt> if profiling is off.
+     */
+    static Profile register(String kind, String name) {
+	if (!enabled())
+	    return null;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (name == null)
+	    name = "#" + (++unnamed);
+
+	String key = kind + " " + name;
+	Profile profile = profiles.get(key);
+	if (profile == null) {
+	    profile = new Profile(key);
+	    profiles.put(key, profile);
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return profile;
+    }
+
+    private static boolean enabled() {
+	if (enabled == null) {
+	    enabled = Config.getBoolean("ContentionProfiler.enabled", false);
+	    if (enabled) {
+		reportLimit = Config.getInteger("ContentionProfiler.reportLimit",
+						10);
+		Stats.addReport(new Runnable() {
+			public void run() { report(); }
+		    });
+	    }
+	}
+
+	return enabled;
+    }
+
+    /**
+     * Print the primitives that kept threads waiting longest.
+     */
+    private static void report() {
+	ArrayList<Profile> sorted = new ArrayList<Profile>(profiles.values());
+	Collections.sort(sorted, new Comparator<Profile>() {
+		public int compare(Profile a, Profile b) {
+		    return Long.compare(b.waitTicks, a.waitTicks);
+		}
+	    });
+
+	int contended = 0;
+	for (Profile profile : sorted) {
+	    if (profile.contended > 0)
+		contended++;
+	}
+
+	System.out.println("Contention: " + contended + " of "
+			   + sorted.size() + " primitives made threads wait");
+
+	for (int i=0; i<Math.min(reportLimit, contended); i++) {
+	    Profile profile = sorted.get(i);
+	    System.out.println("  " + profile.name
+			       + ": acquires " + profile.acquires
+			       + ", contended " + profile.contended
+			       + ", wait " + profile.waitTicks
+			       + " (max " + profile.maxWait
+			       + (profile.maxHolder == null ? "" :
+				  ", held by " + profile.maxHolder)
+			       + ")");
+	}
+    }
+
+    /**
+     * The contention recorded for a primitive, or for all the primitives
+     * with the same name. Interrupts must be disabled.
+     */
+    static class Profile {
+	Profile(String name) {
+	    this.name = name;
+	}
+
+	/**
+	 * Count an acquire that did not have to wait.
+	 */
+	void acquired() {
+	    acquires++;
+	}
+
+	/**
+	 * Count an acquire that had to wait, whether or not it succeeded in
+	 * the end.
+	 *
+	 * @param	holder	the thread that held the primitive when the
+	 *			wait began, or <tt>null</tt> if there is no
+	 *			single holder.
+	 * @param	start	the time the wait began.
+	 */
+	void waited(KThread holder, long start) {
+	    long wait = Machine.timer().getTime() - start;
+
+	    acquires++;
+	    contended++;
+	    waitTicks += wait;
+
+	    if (wait >= maxWait) {
+		maxWait = wait;
+		maxHolder = holder == null ? null : holder.toString();
+	    }
+	}
+
+	private String name;
+	private long acquires = 0, contended = 0;
+	private long waitTicks = 0, maxWait = 0;
+	/** The thread that held the primitive during the longest wait. */
+	private String maxHolder = null;
+    }
+
+    private static Boolean enabled = null;
+    private static int reportLimit;
+
+    private static HashMap<String,Profile> profiles =
+	new HashMap<String,Profile>();
+    private static int unnamed = 0;
+}
@@ -193,8 +193,12 @@ public class KThread {
 
 
 	currentThread.status = statusFinished;
-	if(joinQueue!=null)
-		readyQueue.waitForAccess(joinQueue.nextThread());//if not empty adds waiting threads to readyQueue		
+	if (currentThread.joinQueue != null) {
+	    // wake the threads waiting in join(), if any
+	    KThread joiner;
+	    while ((joiner = currentThread.joinQueue.nextThread()) != null)
+		joiner.ready();
+	}
 	
 	sleep();
     }
@@ -222,6 +226,11 @@ public class KThread {
 	
 	boolean intStatus = Machine.interrupt().disable();
 
+	currentThread.chargeTime();
+	boolean expired = ThreadedKernel.scheduler.sliceExpired(currentThread);
+	ThreadedKernel.scheduler.threadStopped(currentThread, false);
+	if (expired)
+	    currentThread.sliceTicks = 0;
 	currentThread.ready();
 
 	runNextThread();
@@ -245,8 +254,12 @@ public class KThread {
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 
-	if (currentThread.status != statusFinished)
+	if (currentThread.status != statusFinished) {
 	    currentThread.status = statusBlocked;
+	    currentThread.chargeTime();
+	    ThreadedKernel.scheduler.threadStopped(currentThread, true);
+	    currentThread.sliceTicks = 0;
+	}
 
 	runNextThread();
     }
@@ -262,12 +275,78 @@ public class KThread {
 	Lib.assertTrue(status != statusReady);
 	
 	status = statusReady;
-	if (this != idleThread)
+	if (this != idleThread) {
 	    readyQueue.waitForAccess(this);
+	    numReady++;
+	}
 	
 	Machine.autoGrader().readyThread(this);
     }
 
+    /**
+     * Return the number of ticks this thread has run in its current time
+     * slice. A thread starts a new slice when it blocks, and when it gives up
+     * the CPU after using up its quantum; a thread that yields early keeps
+     * the rest of its slice for the next time it runs.
+     *
+     * @return	the ticks of its slice this thread has used.
+     *
+     * @see	nachos.threads.Scheduler#getQuantum
+     */
+    public long getSliceTicks() {
+	if (this == currentThread)
+	    return sliceTicks + Machine.timer().getTime() - dispatchTime;
+	return sliceTicks;
+    }
+
+    /**
+     * Return the total number of ticks this thread has run.
+     */
+    public long getRunTicks() {
+	if (this == currentThread)
+	    return runTicks + Machine.timer().getTime() - dispatchTime;
+	return runTicks;
+    }
+
+    /**
+     * Start a new time slice for this thread, for schedulers that change a
+     * thread's quantum outright.
+     */
+    void newSlice() {
+	sliceTicks = 0;
+	if (this == currentThread)
+	    dispatchTime = Machine.timer().getTime();
+    }
+
+    /**
+     * Return the queue of threads that are ready to run, for schedulers that
+     * need to look at it. Interrupts must be disabled.
+     */
+    static ThreadQueue getReadyQueue() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return readyQueue;
+    }
+
+    /**
+     * Return <tt>true</tt> if no thread other than the idle thread is waiting
+     * to run. Interrupts must be disabled.
+     */
+    static boolean readyQueueEmpty() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return numReady == 0;
+    }
+
+    /**
+     * Add the ticks the current thread has run since it was dispatched, or
+     * since this was last called, to its slice and its total.
+     */
+    private void chargeTime() {
+	long time = Machine.timer().getTime();
+	sliceTicks += time - dispatchTime;
+	runTicks += time - dispatchTime;
+	dispatchTime = time;
+    }
+
     /**
      * Waits for this thread to finish. If this thread is already finished,
      * return immediately. This method must only be called once; the second
@@ -278,15 +357,18 @@ public class KThread {
 	Lib.debug(dbgThread, "Joining to thread: " + toString());
 
 	Lib.assertTrue(this != currentThread);
-	if(this.status!=statusFinished){// if thread is finished, do nothing
 	boolean intStatus = Machine.interrupt().disable();//need to disable interrupts
-	    if(joinQueue==null)	//if joinQueue is empty create a new one
+	if(this.status!=statusFinished){// if thread is finished, do nothing
+	    // each thread has its own join queue, which donates the joiner's
+	    // priority to this thread until it finishes
+	    if(joinQueue==null){
 	    	joinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
-	    joinQueue.acquire(this);//give the lock to the thread
+	    	joinQueue.acquire(this);//give the lock to the thread
+	    }
 	    joinQueue.waitForAccess(currentThread);//the caller thread waits for the called to finish
 	    currentThread.sleep();//caller thread sleeps
-        Machine.interrupt().restore(intStatus);//restores interruptions
 	}
+        Machine.interrupt().restore(intStatus);//restores interruptions
 
     }
 
@@ -320,7 +402,11 @@ public class KThread {
 	KThread nextThread = readyQueue.nextThread();
 	if (nextThread == null)
 	    nextThread = idleThread;
+	else
+	    numReady--;
 
+	nextThread.dispatchTime = Machine.timer().getTime();
+	ThreadedKernel.scheduler.threadDispatched(nextThread);
 	nextThread.run();
     }
 
@@ -488,12 +574,18 @@ public class KThread {
      * threads.
      */
     private int id = numCreated++;
+    /** When this thread was last dispatched, or last charged for its time. */
+    private long dispatchTime = 0;
+    private long sliceTicks = 0;
+    private long runTicks = 0;
     /** Number of times the KThread constructor was called. */
     private static int numCreated = 0;
 
-    private static ThreadQueue joinQueue = null;//Queue used to keep track of joined threads
+    private ThreadQueue joinQueue = null;//Queue used to keep track of threads joining this one
 
     private static ThreadQueue readyQueue = null;
+    /** The number of threads on the ready queue. */
+    private static int numReady = 0;
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
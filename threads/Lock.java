@@ -24,6 +24,18 @@ public class Lock {
      * Allocate a new lock. The lock will initially be <i>free</i>.
      */
     public Lock() {
+	this(null);
+    }
+
+    /**
+     * Allocate a new lock with a name, under which its contention is
+     * reported if <tt>ContentionProfiler.enabled</tt> is set. The lock will
+     * initially be <i>free</i>.
+     *
+     * @param	name	the name of the lock.
+     */
+    public Lock(String name) {
+	profile = ContentionProfiler.register("Lock", name);
     }
 
     /**
@@ -37,12 +49,22 @@ public class Lock {
 	KThread thread = KThread.currentThread();
 
 	if (lockHolder != null) {
+	    KThread holder = lockHolder;
+	    long start = Machine.timer().getTime();
+
+	    waiters++;
 	    waitQueue.waitForAccess(thread);
 	    KThread.sleep();
+
+	    if (profile != null)
+		profile.waited(holder, start);
 	}
 	else {
 	    waitQueue.acquire(thread);
 	    lockHolder = thread;
+
+	    if (profile != null)
+		profile.acquired();
 	}
 
 	Lib.assertTrue(lockHolder == thread);
@@ -50,6 +72,46 @@ public class Lock {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Acquire this lock if it becomes free within <i>ticks</i> ticks. The
+     * current thread must not already hold this lock.
+     *
+     * @param	ticks	the most ticks to wait, or 0 to only check.
+     * @return	<tt>true</tt> if the lock was acquired, or <tt>false</tt> if
+     *		the time ran out first.
+     */
+    public boolean tryAcquire(long ticks) {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (lockHolder == null) {
+	    waitQueue.acquire(thread);
+	    lockHolder = thread;
+
+	    if (profile != null)
+		profile.acquired();
+	}
+	else if (ticks > 0) {
+	    KThread holder = lockHolder;
+	    long start = Machine.timer().getTime();
+
+	    waiters++;
+	    waitQueue.waitForAccess(thread);
+	    if (!ThreadedKernel.alarm.sleepOn(waitQueue, ticks))
+		waiters--;
+
+	    if (profile != null)
+		profile.waited(holder, start);
+	}
+
+	boolean acquired = (lockHolder == thread);
+
+	Machine.interrupt().restore(intStatus);
+	return acquired;
+    }
+
     /**
      * Atomically release this lock, allowing other threads to acquire it.
      */
@@ -58,12 +120,42 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 
-	if ((lockHolder = waitQueue.nextThread()) != null)
+	if ((lockHolder = waitQueue.nextThread()) != null) {
+	    waiters--;
 	    lockHolder.ready();
+	}
 	
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Make <i>thread</i>, which is asleep, wait for this lock as though it
+     * had called <tt>acquire()</tt>, so that it is woken already holding the
+     * lock. The current thread must hold this lock. Interrupts must be
+     * disabled.
+     *
+     * @param	thread	the sleeping thread to give the lock to.
+     */
+    void addWaiter(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(isHeldByCurrentThread());
+
+	waiters++;
+	waitQueue.waitForAccess(thread);
+    }
+
+    /**
+     * Test if any thread is waiting for this lock. Interrupts must be
+     * disabled.
+     *
+     * @return	true if a thread is waiting for this lock.
+     */
+    boolean hasWaiters() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return waiters > 0;
+    }
+
     /**
      * Test if the current thread holds this lock.
      *
@@ -73,7 +165,54 @@ public class Lock {
 	return (lockHolder == KThread.currentThread());
     }
 
+    private static class Holder implements Runnable {
+	Holder(Lock lock, Semaphore holding, long hold) {
+	    this.lock = lock;
+	    this.holding = holding;
+	    this.hold = hold;
+	}
+
+	public void run() {
+	    lock.acquire();
+	    holding.V();
+	    ThreadedKernel.alarm.waitUntil(hold);
+	    lock.release();
+	}
+
+	private Lock lock;
+	private Semaphore holding;
+	private long hold;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	Lock lock = new Lock();
+	Semaphore holding = new Semaphore(0);
+
+	Lib.assertTrue(lock.tryAcquire(0));
+	lock.release();
+
+	KThread holder = new KThread(new Holder(lock, holding, 2000));
+	holder.setName("holder").fork();
+	holding.P();
+
+	// a timed acquire gives up while the lock is held, and gets it once
+	// it is released in time
+	Lib.assertTrue(!lock.tryAcquire(0));
+	Lib.assertTrue(!lock.tryAcquire(500));
+	Lib.assertTrue(lock.tryAcquire(100000));
+	Lib.assertTrue(lock.isHeldByCurrentThread());
+	lock.release();
+
+	holder.join();
+    }
+
     private KThread lockHolder = null;
+    /** The number of threads on <tt>waitQueue</tt>. */
+    private int waiters = 0;
+    private ContentionProfiler.Profile profile;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(true);
 }
@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads using a lottery.
  *
@@ -25,6 +21,12 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Transfers are kept up to date as tickets change, rather than recomputed:
+ * a change in the tickets of a waiting thread is added to its queue's total
+ * and passed on to the queue's owner, and from there along the chain of
+ * waits.
  */
 public class LotteryScheduler extends PriorityScheduler {
     /**
@@ -42,7 +44,426 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	return (int) getTicketState(thread).tickets;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long tickets = getTicketState(thread).getEffectiveTickets();
+	return (int) Math.min(tickets, Integer.MAX_VALUE);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+	
+	getTicketState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+		       
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+		       
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Test if this module is working. Threads keep one scheduling state, so
+     * this must be the scheduler in use. The test threads are never forked;
+     * they are only moved through the queues.
+     */
+    public static void selfTest() {
+	Scheduler scheduler = ThreadedKernel.scheduler;
+	Lib.assertTrue(scheduler instanceof LotteryScheduler);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread owner = new KThread().setName("owner");
+	KThread light = new KThread().setName("light");
+	KThread heavy = new KThread().setName("heavy");
+	scheduler.setPriority(owner, 2);
+	scheduler.setPriority(light, 10);
+	scheduler.setPriority(heavy, 30);
+
+	// waiting threads add their tickets to the owner's
+	ThreadQueue queue = scheduler.newThreadQueue(true);
+	queue.acquire(owner);
+	queue.waitForAccess(light);
+	queue.waitForAccess(heavy);
+	Lib.assertTrue(scheduler.getEffectivePriority(owner) == 42);
+
+	ThreadQueue outer = scheduler.newThreadQueue(true);
+	KThread top = new KThread().setName("top");
+	scheduler.setPriority(top, 1);
+	outer.acquire(top);
+	outer.waitForAccess(owner);
+	Lib.assertTrue(scheduler.getEffectivePriority(top) == 43);
+
+	scheduler.setPriority(light, 20);
+	Lib.assertTrue(scheduler.getEffectivePriority(top) == 53);
+
+	Lib.assertTrue(queue.remove(light) && !queue.remove(light));
+	Lib.assertTrue(scheduler.getEffectivePriority(top) == 33);
+	Lib.assertTrue(outer.nextThread() == owner);
+	Lib.assertTrue(scheduler.getEffectivePriority(top) == 1);
+
+	// a thread with three times the tickets wins about three times as
+	// often
+	scheduler.setPriority(light, 10);
+	ThreadQueue plain = scheduler.newThreadQueue(false);
+	int heavyWins = 0;
+	queue.remove(heavy);
+	plain.waitForAccess(light);
+	plain.waitForAccess(heavy);
+	for (int i=0; i<1000; i++) {
+	    KThread winner = plain.nextThread();
+	    if (winner == heavy)
+		heavyWins++;
+	    plain.waitForAccess(winner);
+	}
+	Lib.assertTrue(heavyWins > 650 && heavyWins < 850);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the lottery state of the specified thread.
+     *
+     * @param	thread	the thread whose lottery state to return.
+     * @return	the lottery state of the specified thread.
+     */
+    protected TicketState getTicketState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new TicketState(thread);
+
+	return (TicketState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its threads. The
+     * tickets of the waiting threads are kept in a Fenwick tree indexed by
+     * slot, so that drawing the winning ticket and changing a thread's
+     * tickets both take time logarithmic in the number of threads.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+	LotteryQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getTicketState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getTicketState(thread).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    TicketState winner = pickNextThread();
+
+	    // the owner, if any, is giving up the resource
+	    if (owner != null) {
+		owner.donate(-total);
+		owner = null;
+	    }
+
+	    if (winner == null)
+		return null;
+
+	    remove(winner);
+	    winner.acquire(this);
+
+	    return winner.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    TicketState state = getTicketState(thread);
+	    if (state.waitingOn != this)
+		return false;
+
+	    state.waitingOn = null;
+	    remove(state);
+	    return true;
+	}
+
+	/**
+	 * Hold the lottery: draw a ticket uniformly among all the tickets of
+	 * the waiting threads, and return the thread that holds it.
+	 *
+	 * @return	the winning thread, or <tt>null</tt> if no thread is
+	 *		waiting.
+	 */
+	protected TicketState pickNextThread() {
+	    if (count == 0)
+		return null;
+
+	    long ticket = Math.min((long) (Lib.random() * total), total - 1);
+
+	    // find the slot whose range of tickets contains the winner
+	    int slot = 0;
+	    for (int step=Integer.highestOneBit(slots.length); step>0;
+		 step>>=1) {
+		if (slot + step <= slots.length && tree[slot + step] <= ticket) {
+		    slot += step;
+		    ticket -= tree[slot];
+		}
+	    }
+
+	    return slots[slot];
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (TicketState state : slots) {
+		if (state != null)
+		    System.out.print(" " + state.thread + "(" +
+				     state.slotTickets + ")");
+	    }
+	    System.out.println();
+	}
+
+	/**
+	 * Give a thread a slot, and its tickets to the owner.
+	 */
+	void add(TicketState state) {
+	    if (count == slots.length)
+		grow();
+
+	    int slot = freeSlots[slots.length - count - 1];
+	    count++;
+
+	    slots[slot] = state;
+	    state.slot = slot;
+	    state.slotTickets = 0;
+	    adjust(state, state.getEffectiveTickets());
+	}
+
+	/**
+	 * Take a thread's slot and tickets away.
+	 */
+	void remove(TicketState state) {
+	    adjust(state, -state.slotTickets);
+
+	    slots[state.slot] = null;
+	    count--;
+	    freeSlots[slots.length - count - 1] = state.slot;
+	}
+
+	/**
+	 * Change the tickets a waiting thread holds in this queue by
+	 * <i>delta</i>, and pass the change on to the owner.
+	 */
+	void adjust(TicketState state, long delta) {
+	    for (int i=state.slot+1; i<=slots.length; i+=i&-i)
+		tree[i] += delta;
+
+	    state.slotTickets += delta;
+	    total += delta;
+
+	    if (owner != null)
+		owner.donate(delta);
+	}
+
+	private void grow() {
+	    int size = slots.length;
+
+	    TicketState[] newSlots = new TicketState[size*2];
+	    System.arraycopy(slots, 0, newSlots, 0, size);
+
+	    // the new slots are all free, and the old ones all taken
+	    int[] newFree = new int[size*2];
+	    for (int i=0; i<size; i++)
+		newFree[i] = size*2 - 1 - i;
+
+	    long[] newTree = new long[size*2 + 1];
+	    for (int i=1; i<=size*2; i++) {
+		if (newSlots[i-1] != null)
+		    newTree[i] += newSlots[i-1].slotTickets;
+		int parent = i + (i&-i);
+		if (parent <= size*2)
+		    newTree[parent] += newTree[i];
+	    }
+
+	    slots = newSlots;
+	    freeSlots = newFree;
+	    tree = newTree;
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The thread holding the resource, if tickets are transferred. */
+	protected TicketState owner = null;
+
+	/** The thread in each slot, or <tt>null</tt> if the slot is free. */
+	private TicketState[] slots = new TicketState[initialSlots];
+	/** The free slots are the first <tt>slots.length - count</tt>
+	 *  entries. */
+	private int[] freeSlots = new int[initialSlots];
+	{
+	    for (int i=0; i<initialSlots; i++)
+		freeSlots[i] = initialSlots - 1 - i;
+	}
+	private int count = 0;
+	/** Fenwick tree over the tickets in each slot, indexed from 1. */
+	private long[] tree = new long[initialSlots + 1];
+	/** The total tickets of the waiting threads. */
+	private long total = 0;
     }
+
+    /**
+     * The lottery state of a thread: its own tickets, the tickets transferred
+     * to it through the queues it owns, and the queue it is waiting on.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class TicketState {
+	/**
+	 * Allocate a new <tt>TicketState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public TicketState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Return the tickets of the associated thread, including those
+	 * transferred to it.
+	 */
+	public long getEffectiveTickets() {
+	    return tickets + donated;
+	}
+
+	/**
+	 * Set the tickets of the associated thread.
+	 */
+	public void setTickets(long tickets) {
+	    long delta = tickets - this.tickets;
+	    this.tickets = tickets;
+	    changed(delta);
+	}
+
+	/**
+	 * Called when the tickets transferred to the associated thread change
+	 * by <i>delta</i>.
+	 */
+	void donate(long delta) {
+	    donated += delta;
+	    changed(delta);
+	}
+
+	/**
+	 * Pass a change of effective tickets on to the queue the associated
+	 * thread is waiting on, which passes it on to that queue's owner.
+	 */
+	private void changed(long delta) {
+	    if (delta != 0 && waitingOn != null)
+		waitingOn.adjust(this, delta);
+	}
+
+	/**
+	 * Called when the associated thread waits on <i>waitQueue</i>.
+	 */
+	public void waitForAccess(LotteryQueue waitQueue) {
+	    Lib.assertTrue(waitingOn == null);
+
+	    waitingOn = waitQueue;
+	    waitQueue.add(this);
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever is
+	 * guarded by <i>waitQueue</i>.
+	 */
+	public void acquire(LotteryQueue waitQueue) {
+	    if (waitingOn == waitQueue)
+		waitingOn = null;
+
+	    if (!waitQueue.transferPriority)
+		return;
+
+	    if (waitQueue.owner != null)
+		waitQueue.owner.donate(-waitQueue.total);
+
+	    waitQueue.owner = this;
+	    donate(waitQueue.total);
+	}
+
+	/** The thread with which this object is associated. */	   
+	protected KThread thread;
+	/** The tickets of the associated thread. */
+	protected long tickets = priorityDefault;
+	/** The tickets transferred to the associated thread. */
+	protected long donated = 0;
+
+	/** The queue the associated thread is waiting on, if any. */
+	protected LotteryQueue waitingOn = null;
+	/** The slot of <tt>waitingOn</tt> the thread holds, and the tickets
+	 *  it holds there. */
+	int slot;
+	long slotTickets;
+    }
+
+    private static final int initialSlots = 8;
 }
@@ -0,0 +1,400 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multi-level feedback queue scheduler. Threads start at the top level,
+ * and the highest non-empty level always runs first, round-robin within the
+ * level. A thread that runs for its level's whole quantum without blocking
+ * drops a level, and each level's quantum is twice that of the level above,
+ * so CPU-bound threads sink and run in long, infrequent stretches. A thread
+ * that blocks rises a level, so interactive threads stay near the top.
+ *
+ * <p>
+ * Only waits for I/O should really count as interactive, but the scheduler
+ * is only told that a thread blocked, not what for. As an approximation,
+ * any block counts: a thread that waits for a lock, a semaphore or a join
+ * rises just as one that waits for the console, a file or the network.
+ *
+ * <p>
+ * A thread the timer interrupt preempts for a higher level before its
+ * quantum is used up keeps its place at the head of its level, so the
+ * preemption does not cost it the rest of its quantum. A thread that calls
+ * <tt>KThread.yield()</tt> itself goes to the tail, as with round-robin.
+ * Every <tt>MLFQScheduler.boostTicks</tt> every thread is moved
+ * back to the top level, so that sunken threads cannot starve.
+ *
+ * <p>
+ * The number of levels and the quantum of the top level are set by
+ * <tt>MLFQScheduler.levels</tt> and <tt>MLFQScheduler.quantum</tt>.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new MLFQ scheduler.
+     */
+    public MLFQScheduler() {
+	levels = Config.getInteger("MLFQScheduler.levels", 3);
+	boostTicks = Config.getInteger("MLFQScheduler.boostTicks",
+				       100*Stats.TimerTicks);
+
+	Lib.assertTrue(levels >= 1 && levels <= 16);
+	Lib.assertTrue(boostTicks > 0);
+    }
+
+    /**
+     * Allocate a new multi-level thread queue.
+     *
+     * @param	transferPriority	ignored. This scheduler does not
+     *					donate priority.
+     * @return	a new multi-level thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MultiLevelQueue();
+    }
+
+    /**
+     * Return the priority of the specified thread: <tt>levels-1</tt> for the
+     * top level, down to 0 for the bottom level.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return levels - 1 - getThreadState(thread).getLevel();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * Move the specified thread to the level for <i>priority</i>, with a
+     * fresh quantum.
+     */
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= 0 && priority < levels);
+
+	ThreadState state = getThreadState(thread);
+	state.level = levels - 1 - priority;
+	thread.newSlice();
+    }
+
+    /**
+     * Return the quantum of the specified thread's level.
+     */
+    public int getQuantum(KThread thread) {
+	return super.getQuantum(thread) << getThreadState(thread).getLevel();
+    }
+
+    /**
+     * Preempt the running thread once its quantum is used up, or as soon as a
+     * thread at a strictly higher level is ready, such as one that was woken
+     * after blocking. A thread preempted before its quantum is used up goes
+     * back to the head of its level. Only the timer interrupt calls this, and
+     * it yields whenever this returns <tt>true</tt>.
+     */
+    public boolean shouldPreempt(KThread thread) {
+	if (sliceExpired(thread))
+	    return true;
+
+	MultiLevelQueue readyQueue = (MultiLevelQueue) KThread.getReadyQueue();
+	ThreadState state = getThreadState(thread);
+	if (readyQueue.topLevel() >= state.getLevel())
+	    return false;
+
+	state.keepPlace = true;
+	return true;
+    }
+
+    public void threadStopped(KThread thread, boolean blocked) {
+	ThreadState state = getThreadState(thread);
+	state.refresh();
+
+	// any block counts as an I/O wait; see the class comment
+	if (blocked) {
+	    if (state.level > 0)
+		state.level--;
+	    state.keepPlace = false;
+	}
+	else if (sliceExpired(thread)) {
+	    if (state.level < levels-1)
+		state.level++;
+	    state.keepPlace = false;
+	}
+    }
+
+    /**
+     * Test if this module is working. Threads keep one scheduling state, so
+     * this must be the scheduler in use. The test threads are never forked;
+     * they are only moved through a queue.
+     */
+    public static void selfTest() {
+	Scheduler scheduler = ThreadedKernel.scheduler;
+	Lib.assertTrue(scheduler instanceof MLFQScheduler);
+	int levels = ((MLFQScheduler) scheduler).levels;
+
+	// interrupts stay disabled, so no boost period can start
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread top1 = new KThread().setName("top 1");
+	KThread top2 = new KThread().setName("top 2");
+	KThread bottom = new KThread().setName("bottom");
+	scheduler.setPriority(bottom, 0);
+	Lib.assertTrue(scheduler.getPriority(top1) == levels-1);
+	Lib.assertTrue(scheduler.getQuantum(bottom) ==
+		       scheduler.getQuantum(top1) << (levels-1));
+
+	// the highest level goes first, in the order its threads came
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	queue.waitForAccess(bottom);
+	queue.waitForAccess(top1);
+	queue.waitForAccess(top2);
+	Lib.assertTrue(queue.nextThread() == top1);
+
+	// a thread that yields goes to the tail of its level
+	scheduler.threadStopped(top1, false);
+	queue.waitForAccess(top1);
+	Lib.assertTrue(queue.nextThread() == top2);
+
+	// a thread preempted early keeps its place at the head; the flag is
+	// set by shouldPreempt(), which needs a higher level on the real ready
+	// queue
+	((MLFQScheduler) scheduler).getThreadState(top2).keepPlace = true;
+	scheduler.threadStopped(top2, false);
+	queue.waitForAccess(top2);
+	Lib.assertTrue(queue.remove(top1) && !queue.remove(top1));
+	queue.waitForAccess(top1);
+	Lib.assertTrue(queue.nextThread() == top2);
+	Lib.assertTrue(queue.nextThread() == top1);
+
+	Lib.assertTrue(queue.nextThread() == bottom);
+	Lib.assertTrue(queue.nextThread() == null);
+
+	// a thread that blocks rises a level
+	scheduler.threadStopped(bottom, true);
+	Lib.assertTrue(scheduler.getPriority(bottom) == Math.min(1, levels-1));
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * The current boost period. Levels recorded in an earlier period are out
+     * of date; every thread starts each period at the top level.
+     */
+    private long boostPeriod() {
+	return Machine.timer().getTime() / boostTicks;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> with a FIFO list for each level. The lists are
+     * linked through the threads' scheduling states, which also record the
+     * level a thread is listed at, so a thread is added or removed in
+     * constant time.
+     */
+    protected class MultiLevelQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    boost();
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.waitingOn == null);
+
+	    state.waitingOn = this;
+	    link(state, state.getLevel(), state.keepPlace);
+	    state.keepPlace = false;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    int level = topLevel();
+	    if (level == levels)
+		return null;
+
+	    ThreadState state = heads[level];
+	    unlink(state);
+	    return state.thread;
+	}
+
+	/**
+	 * Return the highest level with a thread waiting, or <tt>levels</tt>
+	 * if no thread is waiting.
+	 */
+	int topLevel() {
+	    boost();
+
+	    for (int i=0; i<levels; i++) {
+		if (heads[i] != null)
+		    return i;
+	    }
+
+	    return levels;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.waitingOn != this)
+		return false;
+
+	    unlink(state);
+	    return true;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<levels; i++) {
+		for (ThreadState s=heads[i]; s!=null; s=s.next)
+		    System.out.print(" " + s.thread + "(" + i + ")");
+	    }
+	    System.out.println();
+	}
+
+	/**
+	 * At the start of a boost period, move every thread up to the top
+	 * level, keeping their order.
+	 */
+	private void boost() {
+	    long current = boostPeriod();
+	    if (period == current)
+		return;
+
+	    period = current;
+	    for (int i=1; i<levels; i++) {
+		if (heads[i] == null)
+		    continue;
+
+		for (ThreadState s=heads[i]; s!=null; s=s.next)
+		    s.queuedLevel = 0;
+
+		if (tails[0] == null)
+		    heads[0] = heads[i];
+		else
+		    tails[0].next = heads[i];
+		heads[i].prev = tails[0];
+		tails[0] = tails[i];
+		heads[i] = tails[i] = null;
+	    }
+	}
+
+	/**
+	 * Add a thread to the list for <i>level</i>, at the head if
+	 * <i>first</i> is set and otherwise at the tail.
+	 */
+	private void link(ThreadState state, int level, boolean first) {
+	    state.queuedLevel = level;
+	    if (first) {
+		state.prev = null;
+		state.next = heads[level];
+		if (heads[level] == null)
+		    tails[level] = state;
+		else
+		    heads[level].prev = state;
+		heads[level] = state;
+	    }
+	    else {
+		state.prev = tails[level];
+		state.next = null;
+		if (tails[level] == null)
+		    heads[level] = state;
+		else
+		    tails[level].next = state;
+		tails[level] = state;
+	    }
+	}
+
+	private void unlink(ThreadState state) {
+	    int level = state.queuedLevel;
+	    if (state.prev == null)
+		heads[level] = state.next;
+	    else
+		state.prev.next = state.next;
+	    if (state.next == null)
+		tails[level] = state.prev;
+	    else
+		state.next.prev = state.prev;
+	    state.prev = state.next = null;
+	    state.waitingOn = null;
+	}
+
+	/** The first and last waiting thread of each level. */
+	private ThreadState[] heads = new ThreadState[levels];
+	private ThreadState[] tails = new ThreadState[levels];
+	private long period = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its level, and its place in the queue
+     * it is waiting on. How much of the level's quantum it has used is kept
+     * by the thread itself.
+     *
+     * @see	nachos.threads.KThread#getSliceTicks
+     */
+    protected class ThreadState {
+	ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Return the level of the associated thread, after bringing it up to
+	 * date with the current boost period.
+	 */
+	int getLevel() {
+	    refresh();
+	    return level;
+	}
+
+	/**
+	 * Move the associated thread to the top level if a boost period has
+	 * started since its level was last set.
+	 */
+	void refresh() {
+	    long current = boostPeriod();
+	    if (period != current) {
+		period = current;
+		level = 0;
+	    }
+	}
+
+	/** The level of the associated thread; 0 is the top. */
+	int level = 0;
+	/** <tt>true</tt> if the timer interrupt preempted the thread with
+	 *  quantum to spare. */
+	boolean keepPlace = false;
+
+	/** The thread with which this object is associated. */
+	KThread thread;
+	/** The queue the associated thread is waiting on, if any. */
+	MultiLevelQueue waitingOn = null;
+	/** The level of <tt>waitingOn</tt> this thread is listed at, and its
+	 *  neighbours there. */
+	int queuedLevel;
+	ThreadState prev = null, next = null;
+
+	private long period = 0;
+    }
+
+    private int levels;
+    private int boostTicks;
+}
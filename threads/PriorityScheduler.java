@@ -2,9 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -25,6 +22,14 @@ import java.util.Iterator;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ *
+ * <p>
+ * Each queue keeps one FIFO list per priority level and a bitmask of the
+ * levels that are not empty, so finding the next thread takes constant time.
+ * Effective priorities are kept up to date as they change: when a waiting
+ * thread's effective priority changes, it moves to another level of its
+ * queue, and only if that changes the highest level waiting does the owner of
+ * the queue have its effective priority updated in turn.
  */
 public class PriorityScheduler extends Scheduler {
     /**
@@ -72,8 +77,10 @@ public class PriorityScheduler extends Scheduler {
 	KThread thread = KThread.currentThread();
 
 	int priority = getPriority(thread);
-	if (priority == priorityMaximum)
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
 	    return false;
+	}
 
 	setPriority(thread, priority+1);
 
@@ -87,8 +94,10 @@ public class PriorityScheduler extends Scheduler {
 	KThread thread = KThread.currentThread();
 
 	int priority = getPriority(thread);
-	if (priority == priorityMinimum)
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
 	    return false;
+	}
 
 	setPriority(thread, priority-1);
 
@@ -96,6 +105,67 @@ public class PriorityScheduler extends Scheduler {
 	return true;
     }
 
+    /**
+     * Test if this module is working. Threads keep one scheduling state, so
+     * this must be the scheduler in use. The test threads are never forked;
+     * they are only moved through the queues.
+     */
+    public static void selfTest() {
+	Scheduler scheduler = ThreadedKernel.scheduler;
+	Lib.assertTrue(scheduler instanceof PriorityScheduler);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread owner = new KThread().setName("owner");
+	KThread low = new KThread().setName("low");
+	KThread high1 = new KThread().setName("high 1");
+	KThread high2 = new KThread().setName("high 2");
+	scheduler.setPriority(owner, 1);
+	scheduler.setPriority(low, 2);
+	scheduler.setPriority(high1, 5);
+	scheduler.setPriority(high2, 5);
+
+	ThreadQueue queue = scheduler.newThreadQueue(true);
+	queue.acquire(owner);
+	queue.waitForAccess(low);
+	queue.waitForAccess(high1);
+	queue.waitForAccess(high2);
+	Lib.assertTrue(scheduler.getEffectivePriority(owner) == 5);
+
+	// a waiter's new priority reaches the owner
+	scheduler.setPriority(low, 7);
+	Lib.assertTrue(scheduler.getEffectivePriority(owner) == 7);
+
+	// and it is passed on along a chain of waits
+	ThreadQueue outer = scheduler.newThreadQueue(true);
+	KThread top = new KThread().setName("top");
+	outer.acquire(top);
+	outer.waitForAccess(owner);
+	Lib.assertTrue(scheduler.getEffectivePriority(top) == 7);
+
+	Lib.assertTrue(queue.remove(low) && !queue.remove(low));
+	Lib.assertTrue(scheduler.getEffectivePriority(top) == 5);
+
+	// equal priorities leave in the order they came
+	Lib.assertTrue(queue.nextThread() == high1);
+	Lib.assertTrue(scheduler.getEffectivePriority(owner) == 1);
+	Lib.assertTrue(scheduler.getEffectivePriority(high1) == 5);
+	Lib.assertTrue(queue.nextThread() == high2);
+	Lib.assertTrue(queue.nextThread() == null);
+
+	Lib.assertTrue(outer.nextThread() == owner);
+	Lib.assertTrue(scheduler.getEffectivePriority(top) == 1);
+
+	// a queue that does not transfer priority
+	ThreadQueue plain = scheduler.newThreadQueue(false);
+	plain.acquire(owner);
+	plain.waitForAccess(low);
+	Lib.assertTrue(scheduler.getEffectivePriority(owner) == 1);
+	Lib.assertTrue(plain.nextThread() == low);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
     /**
      * The default priority for a new thread. Do not change this value.
      */
@@ -142,8 +212,34 @@ public class PriorityScheduler extends Scheduler {
 
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me
-	    return null;
+
+	    ThreadState next = pickNextThread();
+
+	    // the owner, if any, is giving up the resource
+	    if (owner != null) {
+		owner.donationChanged(top(), -1);
+		owner = null;
+	    }
+
+	    if (next == null)
+		return null;
+
+	    remove(next);
+	    next.acquire(this);
+
+	    return next.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.waitingOn != this)
+		return false;
+
+	    state.waitingOn = null;
+	    remove(state);
+	    return true;
 	}
 
 	/**
@@ -154,13 +250,95 @@ public class PriorityScheduler extends Scheduler {
 	 *		return.
 	 */
 	protected ThreadState pickNextThread() {
-	    // implement me
-	    return null;
+	    int top = top();
+	    return top == -1 ? null : heads[top];
 	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me (if you want)
+
+	    for (int level=priorityMaximum; level>=priorityMinimum; level--) {
+		for (ThreadState s=heads[level]; s!=null; s=s.next)
+		    System.out.print(" " + s.thread + "(" + level + ")");
+	    }
+	    System.out.println();
+	}
+
+	/**
+	 * Return the highest effective priority of the threads waiting on this
+	 * queue.
+	 *
+	 * @return	the highest level that is not empty, or -1 if no thread
+	 *		is waiting.
+	 */
+	protected int top() {
+	    return 31 - Integer.numberOfLeadingZeros(levels);
+	}
+
+	/**
+	 * Add a thread to the tail of the list for its effective priority.
+	 */
+	protected void add(ThreadState state) {
+	    int oldTop = top();
+	    link(state);
+	    topChanged(oldTop);
+	}
+
+	/**
+	 * Remove a thread from the list it is on.
+	 */
+	protected void remove(ThreadState state) {
+	    int oldTop = top();
+	    unlink(state);
+	    topChanged(oldTop);
+	}
+
+	/**
+	 * Move a thread whose effective priority changed to the list for its
+	 * new priority.
+	 */
+	protected void move(ThreadState state) {
+	    int oldTop = top();
+	    unlink(state);
+	    link(state);
+	    topChanged(oldTop);
+	}
+
+	private void link(ThreadState state) {
+	    int level = state.effectivePriority;
+	    state.level = level;
+	    state.prev = tails[level];
+	    state.next = null;
+	    if (tails[level] == null)
+		heads[level] = state;
+	    else
+		tails[level].next = state;
+	    tails[level] = state;
+	    levels |= 1 << level;
+	}
+
+	private void unlink(ThreadState state) {
+	    int level = state.level;
+	    if (state.prev == null)
+		heads[level] = state.next;
+	    else
+		state.prev.next = state.next;
+	    if (state.next == null)
+		tails[level] = state.prev;
+	    else
+		state.next.prev = state.prev;
+	    state.prev = state.next = null;
+	    if (heads[level] == null)
+		levels &= ~(1 << level);
+	}
+
+	/**
+	 * Pass a change of the highest waiting priority on to the owner.
+	 */
+	private void topChanged(int oldTop) {
+	    int newTop = top();
+	    if (owner != null && newTop != oldTop)
+		owner.donationChanged(oldTop, newTop);
 	}
 
 	/**
@@ -168,6 +346,15 @@ public class PriorityScheduler extends Scheduler {
 	 * threads to the owning thread.
 	 */
 	public boolean transferPriority;
+
+	/** The thread holding the resource, if priority is transferred. */
+	protected ThreadState owner = null;
+
+	/** The first and last waiting thread of each priority level. */
+	private ThreadState[] heads = new ThreadState[priorityMaximum+1];
+	private ThreadState[] tails = new ThreadState[priorityMaximum+1];
+	/** Bit <i>p</i> is set if a thread of priority <i>p</i> is waiting. */
+	private int levels = 0;
     }
 
     /**
@@ -205,8 +392,7 @@ public class PriorityScheduler extends Scheduler {
 	 * @return	the effective priority of the associated thread.
 	 */
 	public int getEffectivePriority() {
-	    // implement me
-	    return priority;
+	    return effectivePriority;
 	}
 
 	/**
@@ -220,7 +406,7 @@ public class PriorityScheduler extends Scheduler {
 	    
 	    this.priority = priority;
 	    
-	    // implement me
+	    updateEffectivePriority();
 	}
 
 	/**
@@ -236,7 +422,10 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
-	    // implement me
+	    Lib.assertTrue(waitingOn == null);
+
+	    waitingOn = waitQueue;
+	    waitQueue.add(this);
 	}
 
 	/**
@@ -250,12 +439,67 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#nextThread
 	 */
 	public void acquire(PriorityQueue waitQueue) {
-	    // implement me
-	}	
+	    if (waitingOn == waitQueue)
+		waitingOn = null;
+
+	    if (!waitQueue.transferPriority)
+		return;
+
+	    if (waitQueue.owner != null)
+		waitQueue.owner.donationChanged(waitQueue.top(), -1);
+
+	    waitQueue.owner = this;
+	    donationChanged(-1, waitQueue.top());
+	}
+
+	/**
+	 * Called when the highest priority waiting on a queue this thread owns
+	 * changes from <i>oldTop</i> to <i>newTop</i>; either may be -1,
+	 * meaning no thread.
+	 */
+	protected void donationChanged(int oldTop, int newTop) {
+	    if (oldTop >= 0 && --donations[oldTop] == 0)
+		donationLevels &= ~(1 << oldTop);
+	    if (newTop >= 0 && donations[newTop]++ == 0)
+		donationLevels |= 1 << newTop;
+
+	    updateEffectivePriority();
+	}
+
+	/**
+	 * Recompute the effective priority from the base priority and the
+	 * donations, and if it changed, move this thread within the queue it
+	 * is waiting on, which may pass the change on to that queue's owner.
+	 */
+	protected void updateEffectivePriority() {
+	    int donated = 31 - Integer.numberOfLeadingZeros(donationLevels);
+	    int newPriority = Math.max(priority, donated);
+	    if (newPriority == effectivePriority)
+		return;
+
+	    effectivePriority = newPriority;
+
+	    if (waitingOn != null)
+		waitingOn.move(this);
+	}
 
 	/** The thread with which this object is associated. */	   
 	protected KThread thread;
 	/** The priority of the associated thread. */
 	protected int priority;
+	/** The priority of the associated thread, including donations. */
+	protected int effectivePriority;
+
+	/** The queue the associated thread is waiting on, if any. */
+	protected PriorityQueue waitingOn = null;
+	/** The level of <tt>waitingOn</tt> this thread is listed at, and its
+	 *  neighbours there. */
+	protected int level;
+	protected ThreadState prev = null, next = null;
+
+	/** For each priority, the number of queues owned by the associated
+	 *  thread whose highest waiting thread has that priority. */
+	private int[] donations = new int[priorityMaximum+1];
+	private int donationLevels = 0;
     }
 }
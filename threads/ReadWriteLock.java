@@ -0,0 +1,306 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedHashSet;
+
+/**
+ * A lock that can be held either by any number of readers at once, or by a
+ * single writer. Writers are preferred: once a writer is waiting, new readers
+ * wait too, so a steady stream of readers cannot starve writers. When a
+ * writer releases the lock it passes straight to the next waiting writer if
+ * there is one, and otherwise to all the waiting readers at once.
+ *
+ * <p>
+ * If the lock transfers priority, the threads waiting for it donate priority
+ * to a thread holding it. Readers and writers waiting behind a writer donate
+ * to that writer. Writers waiting behind readers donate to one of the
+ * readers, and the donation moves to another reader when that one releases
+ * the lock, so that it always reaches the reader that releases last.
+ *
+ * <p>
+ * A writer can <tt>downgrade()</tt> to a reader without letting another
+ * writer in between.
+ *
+ * @see	nachos.threads.Lock
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new reader-writer lock that transfers priority. The lock
+     * will initially be free.
+     */
+    public ReadWriteLock() {
+	this(true);
+    }
+
+    /**
+     * Allocate a new reader-writer lock. The lock will initially be free.
+     *
+     * @param	transferPriority	<tt>true</tt> if waiting threads should
+     *					donate priority to the threads
+     *					holding the lock.
+     */
+    public ReadWriteLock(boolean transferPriority) {
+	writeQueue = ThreadedKernel.scheduler.newThreadQueue(transferPriority);
+	readQueue = ThreadedKernel.scheduler.newThreadQueue(transferPriority);
+    }
+
+    /**
+     * Atomically acquire this lock for reading. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireRead() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer == null && waitingWriters == 0) {
+	    admitReader(thread);
+	}
+	else {
+	    waitingReaders++;
+	    readQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+
+	Lib.assertTrue(readers.contains(thread));
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock, which the current thread holds for
+     * reading.
+     */
+    public void releaseRead() {
+	Lib.assertTrue(isReadHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	readers.remove(thread);
+	if (readers.isEmpty()) {
+	    grantNext();
+	}
+	else if (readOwner == thread) {
+	    // hand the waiting writers' donation on to a remaining reader
+	    readOwner = readers.iterator().next();
+	    writeQueue.acquire(readOwner);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically acquire this lock for writing. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireWrite() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer == null && readers.isEmpty()) {
+	    writer = thread;
+	    writeQueue.acquire(thread);
+	    readQueue.acquire(thread);
+	}
+	else {
+	    waitingWriters++;
+	    writeQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+
+	Lib.assertTrue(writer == thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock, which the current thread holds for
+     * writing.
+     */
+    public void releaseWrite() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	writer = null;
+	grantNext();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically turn the current thread's hold on this lock for writing
+     * into a hold for reading. Readers that were waiting are let in with it,
+     * unless a writer is waiting too.
+     */
+    public void downgrade() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	// the thread already owns the write queue, so keeps its donation
+	writer = null;
+	readers.add(thread);
+	readOwner = thread;
+
+	if (waitingWriters == 0)
+	    admitWaitingReaders();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock for reading.
+     *
+     * @return	true if the current thread holds this lock for reading.
+     */
+    public boolean isReadHeldByCurrentThread() {
+	return readers.contains(KThread.currentThread());
+    }
+
+    /**
+     * Test if the current thread holds this lock for writing.
+     *
+     * @return	true if the current thread holds this lock for writing.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return (writer == KThread.currentThread());
+    }
+
+    /**
+     * Test if the current thread holds this lock, for reading or writing.
+     *
+     * @return	true if the current thread holds this lock.
+     */
+    public boolean isHeldByCurrentThread() {
+	return isReadHeldByCurrentThread() || isWriteHeldByCurrentThread();
+    }
+
+    /**
+     * Give the free lock to the next waiting writer, or failing that, to all
+     * the waiting readers.
+     */
+    private void grantNext() {
+	readOwner = null;
+
+	if (waitingWriters > 0) {
+	    waitingWriters--;
+	    writer = writeQueue.nextThread();
+	    readQueue.acquire(writer);
+	    writer.ready();
+	}
+	else {
+	    // clear the previous holder as owner of the write queue
+	    writeQueue.nextThread();
+
+	    admitWaitingReaders();
+	}
+    }
+
+    private void admitWaitingReaders() {
+	while (waitingReaders > 0) {
+	    waitingReaders--;
+	    KThread thread = readQueue.nextThread();
+	    admitReader(thread);
+	    thread.ready();
+	}
+
+	// no one is left waiting to read, so no one should own the queue
+	readQueue.nextThread();
+    }
+
+    /**
+     * Let a thread in to read. No writer may be waiting.
+     */
+    private void admitReader(KThread thread) {
+	readers.add(thread);
+	if (readOwner == null) {
+	    readOwner = thread;
+	    writeQueue.acquire(thread);
+	}
+    }
+
+    private static class Accessor implements Runnable {
+	Accessor(ReadWriteLock lock, boolean write, StringBuffer log) {
+	    this.lock = lock;
+	    this.write = write;
+	    this.log = log;
+	}
+
+	public void run() {
+	    if (write) {
+		lock.acquireWrite();
+		log.append('W');
+		lock.releaseWrite();
+	    }
+	    else {
+		lock.acquireRead();
+		log.append('R');
+		lock.releaseRead();
+	    }
+	}
+
+	private ReadWriteLock lock;
+	private boolean write;
+	private StringBuffer log;
+    }
+
+    private static KThread fork(ReadWriteLock lock, boolean write,
+				StringBuffer log) {
+	KThread thread = new KThread(new Accessor(lock, write, log));
+	thread.setName(write ? "writer" : "reader").fork();
+
+	// long enough for the thread to get the lock or start waiting
+	ThreadedKernel.alarm.waitUntil(100);
+	return thread;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	ReadWriteLock lock = new ReadWriteLock();
+	StringBuffer log = new StringBuffer();
+
+	// readers share the lock
+	lock.acquireRead();
+	KThread reader = fork(lock, false, log);
+	Lib.assertTrue(log.toString().equals("R"));
+	reader.join();
+
+	// a waiting writer keeps new readers out, and goes first
+	KThread writer = fork(lock, true, log);
+	reader = fork(lock, false, log);
+	Lib.assertTrue(log.toString().equals("R"));
+	lock.releaseRead();
+	writer.join();
+	reader.join();
+	Lib.assertTrue(log.toString().equals("RWR"));
+
+	// a writer excludes readers until it downgrades
+	lock.acquireWrite();
+	reader = fork(lock, false, log);
+	Lib.assertTrue(log.toString().equals("RWR"));
+	lock.downgrade();
+	Lib.assertTrue(lock.isReadHeldByCurrentThread());
+	reader.join();
+	Lib.assertTrue(log.toString().equals("RWRR"));
+	lock.releaseRead();
+    }
+
+    private KThread writer = null;
+    /** The threads holding this lock for reading. */
+    private LinkedHashSet<KThread> readers = new LinkedHashSet<KThread>();
+    /** The reader that owns <tt>writeQueue</tt> while readers hold the
+     *  lock. */
+    private KThread readOwner = null;
+
+    private ThreadQueue writeQueue, readQueue;
+    private int waitingWriters = 0, waitingReaders = 0;
+}
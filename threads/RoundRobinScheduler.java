@@ -2,12 +2,13 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 
 /**
  * A round-robin scheduler tracks waiting threads in FIFO queues, implemented
- * with linked lists. When a thread begins waiting for access, it is appended
+ * with linked hash sets, so that a waiting thread can also be removed from
+ * the middle of a queue without a search. When a thread begins waiting for access, it is appended
  * to the end of a list. The next thread to receive access is always the first
  * thread in the list. This causes access to be given on a first-come
  * first-serve basis.
@@ -55,18 +56,32 @@ public class RoundRobinScheduler extends Scheduler {
 	    if (waitQueue.isEmpty())
 		return null;
 
-	    return (KThread) waitQueue.removeFirst();
+	    Iterator<KThread> i = waitQueue.iterator();
+	    KThread thread = i.next();
+	    i.remove();
+	    return thread;
 	}
 
 	/**
-	 * The specified thread has received exclusive access, without using
-	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
-	 * threads are waiting for access.
+	 * Remove a thread from wherever it is in the queue.
+	 *
+	 * @param	thread	the thread to remove.
+	 * @return	<tt>true</tt> if the thread was on the queue.
+	 */
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    return waitQueue.remove(thread);
+	}
+
+	/**
+	 * The specified thread has received access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. A FIFO queue does
+	 * not track who has access, so other threads may still be waiting; a
+	 * <tt>ReadWriteLock</tt> passes access among its holders this way.
 	 */
 	public void acquire(KThread thread) {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-		       
-	    Lib.assertTrue(waitQueue.isEmpty());
 	}
 
 	/**
@@ -79,6 +94,6 @@ public class RoundRobinScheduler extends Scheduler {
 		System.out.print((KThread) i.next() + " ");
 	}
 
-	private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+	private LinkedHashSet<KThread> waitQueue = new LinkedHashSet<KThread>();
     }
 }
@@ -9,9 +9,14 @@ import nachos.machine.*;
  */
 public abstract class Scheduler {
     /**
-     * Allocate a new scheduler.
+     * Allocate a new scheduler. The quantum is read from
+     * <tt><i>ClassName</i>.quantum</tt>, so each scheduler class can be given
+     * its own, and defaults to one timer interrupt.
      */
     public Scheduler() {
+	quantum = Config.getInteger(getClass().getSimpleName() + ".quantum",
+				    Stats.TimerTicks);
+	Lib.assertTrue(quantum > 0);
     }
     
     /**
@@ -154,4 +159,72 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Return the number of ticks <i>thread</i> may run before the timer
+     * interrupt preempts it in favour of another ready thread. The default
+     * gives every thread the configured quantum. Interrupts are disabled.
+     *
+     * @param	thread	the thread.
+     * @return	the length of the thread's time slice.
+     */
+    public int getQuantum(KThread thread) {
+	return quantum;
+    }
+
+    /**
+     * Return <tt>true</tt> if <i>thread</i> has used up its time slice. The
+     * timer interrupts at slightly irregular intervals, so a slice counts as
+     * used up once it is used to within a tenth of a timer interval.
+     * Interrupts are disabled.
+     *
+     * @param	thread	the thread.
+     * @return	<tt>true</tt> if the thread's slice has expired.
+     *
+     * @see	nachos.threads.KThread#getSliceTicks
+     */
+    public boolean sliceExpired(KThread thread) {
+	return thread.getSliceTicks() + slack >= getQuantum(thread);
+    }
+
+    /**
+     * Return <tt>true</tt> if the timer interrupt should preempt
+     * <i>thread</i>, which is running while another thread is ready. The
+     * default preempts a thread once its slice has expired. Interrupts are
+     * disabled.
+     *
+     * @param	thread	the running thread.
+     * @return	<tt>true</tt> if the thread should yield.
+     */
+    public boolean shouldPreempt(KThread thread) {
+	return sliceExpired(thread);
+    }
+
+    /**
+     * Called when the CPU is dispatched to <i>thread</i>. Schedulers that
+     * account for the time each thread runs can use this to start the clock;
+     * the default does nothing. Interrupts are disabled.
+     *
+     * @param	thread	the thread about to run.
+     */
+    public void threadDispatched(KThread thread) {
+    }
+
+    /**
+     * Called when the running thread gives up the CPU, either to go back on
+     * the ready queue (from <tt>KThread.yield()</tt>) or because it is about
+     * to block. The time it ran has already been added to
+     * <tt>thread.getSliceTicks()</tt>; its slice is reset after this returns
+     * if it blocked or <tt>sliceExpired()</tt>. The default does nothing.
+     * Interrupts are disabled.
+     *
+     * @param	thread	the thread that was running.
+     * @param	blocked	<tt>true</tt> if the thread is going to sleep.
+     */
+    public void threadStopped(KThread thread, boolean blocked) {
+    }
+
+    private int quantum;
+
+    private static final int slack = Stats.TimerTicks/10;
 }
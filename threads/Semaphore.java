@@ -28,7 +28,19 @@ public class Semaphore {
      * @param	initialValue	the initial value of this semaphore.
      */
     public Semaphore(int initialValue) {
+	this(initialValue, null);
+    }
+
+    /**
+     * Allocate a new semaphore with a name, under which its contention is
+     * reported if <tt>ContentionProfiler.enabled</tt> is set.
+     *
+     * @param	initialValue	the initial value of this semaphore.
+     * @param	name		the name of this semaphore.
+     */
+    public Semaphore(int initialValue, String name) {
 	value = initialValue;
+	profile = ContentionProfiler.register("Semaphore", name);
     }
 
     /**
@@ -38,14 +50,58 @@ public class Semaphore {
 	boolean intStatus = Machine.interrupt().disable();
 
 	if (value == 0) {
+	    long start = Machine.timer().getTime();
+
 	    waitQueue.waitForAccess(KThread.currentThread());
 	    KThread.sleep();
+
+	    if (profile != null)
+		profile.waited(null, start);
 	}
 	else {
 	    value--;
+
+	    if (profile != null)
+		profile.acquired();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Wait at most <i>ticks</i> ticks for this semaphore to become non-zero,
+     * and decrement it if it does.
+     *
+     * @param	ticks	the most ticks to wait, or 0 to only check.
+     * @return	<tt>true</tt> if the semaphore was decremented, or
+     *		<tt>false</tt> if the time ran out first.
+     */
+    public boolean P(long ticks) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean acquired = true;
+	if (value > 0) {
+	    value--;
+
+	    if (profile != null)
+		profile.acquired();
+	}
+	else if (ticks <= 0) {
+	    acquired = false;
+	}
+	else {
+	    long start = Machine.timer().getTime();
+
+	    // V() hands the value straight to the thread it wakes
+	    waitQueue.waitForAccess(KThread.currentThread());
+	    acquired = ThreadedKernel.alarm.sleepOn(waitQueue, ticks);
+
+	    if (profile != null)
+		profile.waited(null, start);
 	}
 
 	Machine.interrupt().restore(intStatus);
+	return acquired;
     }
 
     /**
@@ -83,6 +139,21 @@ public class Semaphore {
 	private Semaphore pong;
     }
 
+    private static class DelayedV implements Runnable {
+	DelayedV(Semaphore semaphore, long delay) {
+	    this.semaphore = semaphore;
+	    this.delay = delay;
+	}
+
+	public void run() {
+	    ThreadedKernel.alarm.waitUntil(delay);
+	    semaphore.V();
+	}
+
+	private Semaphore semaphore;
+	private long delay;
+    }
+
     /**
      * Test if this module is working.
      */
@@ -96,9 +167,20 @@ public class Semaphore {
 	    ping.V();
 	    pong.P();
 	}
+
+	// a timed P() gives up without a V(), and takes one that comes in time
+	Lib.assertTrue(!pong.P(0));
+	long start = Machine.timer().getTime();
+	Lib.assertTrue(!pong.P(1000));
+	Lib.assertTrue(Machine.timer().getTime() - start >= 1000);
+
+	new KThread(new DelayedV(pong, 500)).setName("delayed V").fork();
+	Lib.assertTrue(pong.P(100000));
+	Lib.assertTrue(!pong.P(0));
     }
 
     private int value;
+    private ContentionProfiler.Profile profile;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(false);
 }
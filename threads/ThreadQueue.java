@@ -91,6 +91,16 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Take a thread that is waiting for access off this queue without giving
+     * it access; for example, because it stopped waiting after a timeout.
+     * If the queue transfers priority, the thread stops donating it.
+     *
+     * @param	thread	the thread to remove.
+     * @return	<tt>true</tt> if the thread was waiting on this queue.
+     */
+    public abstract boolean remove(KThread thread);
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
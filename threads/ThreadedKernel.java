@@ -51,7 +51,17 @@ public class ThreadedKernel extends Kernel {
 	//Boat.selfTest();
 	//KThread.alarmTest();
 	Semaphore.selfTest();
+	Lock.selfTest();
+	Condition2.selfTest();
+	ReadWriteLock.selfTest();
+	Channel.selfTest();
 	SynchList.selfTest();
+	if (scheduler instanceof LotteryScheduler)
+	    LotteryScheduler.selfTest();
+	else if (scheduler instanceof PriorityScheduler)
+	    PriorityScheduler.selfTest();
+	else if (scheduler instanceof MLFQScheduler)
+	    MLFQScheduler.selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
@@ -0,0 +1,901 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.nio.charset.Charset;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A file system that keeps all of its files on a single simulated disk
+ * volume. The volume is itself a file on the stub file system, so every
+ * volume access costs the same simulated time no matter how many bytes it
+ * transfers.
+ *
+ * <p>
+ * Files are allocated in <i>extents</i>, runs of contiguous blocks described
+ * by a starting block and a length, rather than with one pointer per block.
+ * Free space is indexed by run length, so allocation picks the smallest free
+ * run that is large enough (best fit), and a growing file is extended in place
+ * whenever the blocks following its last extent are free. A read or write
+ * therefore takes one volume access per extent it touches.
+ *
+ * <p>
+ * Changes to the file table are crash consistent. Rather than rewriting the
+ * table in place on every change, the names of changed files are collected
+ * in memory and written to a metadata journal as a single transaction (group
+ * commit): periodically, when enough files have changed, or on
+ * <tt>sync()</tt>. A transaction records the final state of each changed
+ * file, so any number of operations on the same file within a transaction
+ * cost one journal record. When the journal is full, the whole table is
+ * written back in place (a checkpoint) and the journal starts over. On mount,
+ * committed transactions are replayed onto the table. Blocks freed by a
+ * removal are not reused until the removal has been committed.
+ *
+ * <p>
+ * The volume is laid out as follows:
+ *
+ * <table>
+ * <tr><td>block</td><td>contents</td></tr>
+ * <tr><td>0</td><td>volume header, followed by the file table</td></tr>
+ * <tr><td>1 .. <tt>metadataBlocks</tt></td><td>rest of the file
+ *						table</td></tr>
+ * <tr><td><tt>metadataBlocks+1</tt> ..</td><td>metadata journal
+ *						(<tt>journalBlocks</tt>
+ *						blocks)</td></tr>
+ * <tr><td>..</td><td>file data</td></tr>
+ * </table>
+ *
+ * <p>
+ * To use this file system, set <tt>ThreadedKernel.fileSystem</tt> to
+ * <tt>nachos.userprog.DiskFileSystem</tt> in <tt>nachos.conf</tt>.
+ */
+public class DiskFileSystem implements FileSystem {
+    /**
+     * Allocate a new disk file system. The volume is not accessed until the
+     * file system is mounted.
+     */
+    public DiskFileSystem() {
+	volumeName = Config.getString("DiskFileSystem.volume", "nachos.dsk");
+	numBlocks = Config.getInteger("DiskFileSystem.numBlocks", 1024);
+	numMetadataBlocks =
+	    Config.getInteger("DiskFileSystem.metadataBlocks", 16);
+	numJournalBlocks =
+	    Config.getInteger("DiskFileSystem.journalBlocks", 16);
+	commitInterval =
+	    Config.getInteger("DiskFileSystem.commitInterval", 50000);
+	groupCommitSize =
+	    Config.getInteger("DiskFileSystem.groupCommitSize", 256);
+
+	fsLock = new Lock("DiskFileSystem.fsLock");
+    }
+
+    /**
+     * Mount the volume, formatting it first if it does not contain a file
+     * system, and replay any transactions committed to the journal since the
+     * last checkpoint. Called by <tt>UserKernel.initialize()</tt>; if it is
+     * not, the volume is mounted by the first file system operation instead.
+     */
+    public void mount() {
+	fsLock.acquire();
+	checkMounted();
+	fsLock.release();
+    }
+
+    /**
+     * Commit all pending changes to the file table to the journal. Returns
+     * once they are on the volume.
+     */
+    public void sync() {
+	fsLock.acquire();
+	checkMounted();
+	commit();
+	fsLock.release();
+    }
+
+    public OpenFile open(String name, boolean create) {
+	return open(name, create, 0);
+    }
+
+    /**
+     * Atomically open a file, optionally creating it if it does not already
+     * exist. If the file is created and <i>sizeHint</i> is positive, enough
+     * blocks to hold <i>sizeHint</i> bytes are allocated immediately, as a
+     * single extent if possible, so that writing the file sequentially never
+     * needs to allocate.
+     *
+     * @param	name		the name of the file to open.
+     * @param	create		<tt>true</tt> to create the file if it does not
+     *				already exist.
+     * @param	sizeHint	the expected size of a newly created file, or 0
+     *				if it is not known.
+     * @return	an <tt>OpenFile</tt> representing a new instance of the opened
+     *		file, or <tt>null</tt> if the file could not be opened.
+     */
+    public OpenFile open(String name, boolean create, int sizeHint) {
+	if (!checkName(name))
+	    return null;
+
+	fsLock.acquire();
+	checkMounted();
+
+	Inode inode = directory.get(name);
+	if (inode == null && create) {
+	    inode = new Inode(name);
+
+	    if (tableLength + inode.entryLength() <= tableCapacity()) {
+		directory.put(name, inode);
+		tableLength += inode.entryLength();
+
+		if (sizeHint > 0)
+		    growFile(inode, Lib.divRoundUp(sizeHint, blockSize));
+
+		markDirty(name);
+	    }
+	    else {
+		Lib.debug(dbgFS, "\tfile table full");
+		inode = null;
+	    }
+	}
+
+	OpenFile file = null;
+	if (inode != null) {
+	    inode.openCount++;
+	    file = new DiskOpenFile(inode);
+	}
+
+	fsLock.release();
+	return file;
+    }
+
+    public boolean remove(String name) {
+	if (!checkName(name))
+	    return false;
+
+	fsLock.acquire();
+	checkMounted();
+
+	Inode inode = directory.remove(name);
+	if (inode != null) {
+	    tableLength -= inode.entryLength();
+
+	    // blocks of a file that is still open are freed on its last close
+	    inode.removed = true;
+	    if (inode.openCount == 0)
+		freeFile(inode);
+
+	    markDirty(name);
+	}
+
+	fsLock.release();
+	return (inode != null);
+    }
+
+    private static boolean checkName(String name) {
+	return (name != null && name.length() > 0 &&
+		name.length() <= maxNameLength);
+    }
+
+    private void checkMounted() {
+	Lib.assertTrue(fsLock.isHeldByCurrentThread());
+
+	if (volume != null)
+	    return;
+
+	volume = Machine.stubFileSystem().open(volumeName, false);
+	if (volume == null)
+	    volume = Machine.stubFileSystem().open(volumeName, true);
+	Lib.assertTrue(volume != null, "unable to open disk volume");
+
+	directory = new HashMap<String,Inode>();
+	tableLength = 0;
+
+	dirty = new LinkedHashSet<String>();
+	pendingFree = new ArrayList<Extent>();
+
+	byte[] header = new byte[headerLength];
+	if (volume.read(0, header, 0, headerLength) == headerLength &&
+	    Lib.bytesToInt(header, 0) == volumeMagic) {
+	    numBlocks = Lib.bytesToInt(header, 4);
+	    numMetadataBlocks = Lib.bytesToInt(header, 8);
+	    numJournalBlocks = Lib.bytesToInt(header, 12);
+	    epoch = Lib.bytesToInt(header, 16);
+
+	    readMetadata(Lib.bytesToInt(header, 20));
+	    int replayed = replayJournal();
+	    Lib.debug(dbgFS, "replayed " + replayed + " transactions");
+	}
+	else {
+	    Lib.debug(dbgFS, "formatting " + volumeName);
+	    epoch = 0;
+	}
+
+	initFreeSpace();
+
+	// start a new journal, so that replayed transactions are not replayed
+	// again on top of later ones
+	checkpoint();
+
+	KThread committer = new KThread(new Runnable() {
+		public void run() { commitDaemon(); }
+	    });
+	committer.setName("journal commit").fork();
+    }
+
+    private int tableCapacity() {
+	return (numMetadataBlocks+1)*blockSize - headerLength;
+    }
+
+    private int journalStart() {
+	return (numMetadataBlocks+1)*blockSize;
+    }
+
+    private int journalCapacity() {
+	return numJournalBlocks*blockSize;
+    }
+
+    private int firstDataBlock() {
+	return numMetadataBlocks+1+numJournalBlocks;
+    }
+
+    /**
+     * Build the free space index from the file table. Blocks not covered by
+     * any extent in the table are free, so the free space index never needs
+     * to be written to the volume.
+     */
+    private void initFreeSpace() {
+	freeByStart = new TreeMap<Integer,Integer>();
+	freeBySize = new TreeSet<Long>();
+
+	Lib.assertTrue(numBlocks > firstDataBlock());
+	addFree(firstDataBlock(), numBlocks - firstDataBlock());
+
+	for (Inode inode : directory.values()) {
+	    for (Extent extent : inode.extents)
+		reserveBlocks(extent.start, extent.length);
+	}
+    }
+
+    private void readMetadata(int length) {
+	byte[] table = new byte[length];
+	Lib.strictReadFile(volume, headerLength, table, 0, length);
+
+	int offset = 0;
+	while (offset < length) {
+	    Inode inode = readEntry(table, offset);
+	    offset += inode.entryLength();
+
+	    directory.put(inode.name, inode);
+	    tableLength += inode.entryLength();
+	}
+    }
+
+    /**
+     * Apply the transactions in the journal to the file table, in the order
+     * they were committed. Stops at the first transaction that is incomplete
+     * or that belongs to an earlier checkpoint.
+     *
+     * @return	the number of transactions replayed.
+     */
+    private int replayJournal() {
+	byte[] journal = new byte[journalCapacity()];
+	int length = Math.max(0, volume.read(journalStart(), journal, 0,
+					     journal.length));
+
+	int numReplayed = 0;
+	int offset = 0;
+
+	while (offset + commitHeaderLength <= length) {
+	    int commitLength = Lib.bytesToInt(journal, offset);
+	    if (commitLength < commitHeaderLength ||
+		offset + commitLength > length ||
+		Lib.bytesToInt(journal, offset+4) != epoch ||
+		Lib.bytesToInt(journal, offset+8) !=
+		checksum(journal, offset+commitHeaderLength,
+			 commitLength-commitHeaderLength))
+		break;
+
+	    int record = offset + commitHeaderLength;
+	    while (record < offset + commitLength) {
+		byte type = journal[record++];
+
+		if (type == recordSetFile) {
+		    Inode inode = readEntry(journal, record);
+		    record += inode.entryLength();
+
+		    Inode old = directory.put(inode.name, inode);
+		    if (old != null)
+			tableLength -= old.entryLength();
+		    tableLength += inode.entryLength();
+		}
+		else {
+		    int nameLength = Lib.bytesToUnsignedShort(journal, record);
+		    String name = decodeName(journal, record+2, nameLength);
+		    record += 2 + nameLength;
+
+		    Inode old = directory.remove(name);
+		    if (old != null)
+			tableLength -= old.entryLength();
+		}
+	    }
+
+	    offset += commitLength;
+	    numReplayed++;
+	}
+
+	return numReplayed;
+    }
+
+    /**
+     * Note that the entry for the named file has changed. Commits the
+     * current transaction if it has grown large enough.
+     */
+    private void markDirty(String name) {
+	dirty.add(name);
+
+	if (dirty.size() >= groupCommitSize)
+	    commit();
+    }
+
+    /**
+     * Write the current transaction to the journal with a single volume
+     * access, then release the blocks it freed. Checkpoints instead if the
+     * journal does not have room for the transaction.
+     */
+    private void commit() {
+	Lib.assertTrue(fsLock.isHeldByCurrentThread());
+
+	if (dirty.isEmpty()) {
+	    releasePendingFree();
+	    return;
+	}
+
+	int length = commitHeaderLength;
+	for (String name : dirty) {
+	    Inode inode = directory.get(name);
+
+	    if (inode != null)
+		length += 1 + inode.entryLength();
+	    else
+		length += 1 + 2 + encodeName(name).length;
+	}
+
+	if (journalTail + length > journalCapacity()) {
+	    checkpoint();
+	    return;
+	}
+
+	byte[] buf = new byte[length];
+	int offset = commitHeaderLength;
+
+	for (String name : dirty) {
+	    Inode inode = directory.get(name);
+
+	    if (inode != null) {
+		buf[offset++] = recordSetFile;
+		offset = writeEntry(buf, offset, inode);
+	    }
+	    else {
+		byte[] nameBytes = encodeName(name);
+
+		buf[offset++] = recordRemoveFile;
+		Lib.bytesFromShort(buf, offset, (short) nameBytes.length);
+		System.arraycopy(nameBytes, 0, buf, offset+2,
+				 nameBytes.length);
+		offset += 2 + nameBytes.length;
+	    }
+	}
+
+	Lib.assertTrue(offset == length);
+
+	Lib.bytesFromInt(buf, 0, length);
+	Lib.bytesFromInt(buf, 4, epoch);
+	Lib.bytesFromInt(buf, 8, checksum(buf, commitHeaderLength,
+					  length-commitHeaderLength));
+
+	Lib.debug(dbgFS, "committing " + dirty.size() + " changes");
+
+	volume.write(journalStart() + journalTail, buf, 0, length);
+	journalTail += length;
+
+	dirty.clear();
+	releasePendingFree();
+    }
+
+    /**
+     * Write the volume header and the whole file table in place, with a
+     * single volume access, and start a new (empty) journal. The header
+     * carries a new epoch, so transactions already in the journal are
+     * ignored from now on.
+     */
+    private void checkpoint() {
+	epoch++;
+
+	byte[] table = new byte[headerLength + tableLength];
+
+	Lib.bytesFromInt(table, 0, volumeMagic);
+	Lib.bytesFromInt(table, 4, numBlocks);
+	Lib.bytesFromInt(table, 8, numMetadataBlocks);
+	Lib.bytesFromInt(table, 12, numJournalBlocks);
+	Lib.bytesFromInt(table, 16, epoch);
+	Lib.bytesFromInt(table, 20, tableLength);
+
+	int offset = headerLength;
+	for (Inode inode : directory.values())
+	    offset = writeEntry(table, offset, inode);
+
+	Lib.assertTrue(offset == table.length);
+
+	Lib.debug(dbgFS, "checkpoint, epoch " + epoch);
+
+	volume.write(0, table, 0, table.length);
+	journalTail = 0;
+
+	dirty.clear();
+	releasePendingFree();
+    }
+
+    private void commitDaemon() {
+	while (true) {
+	    ThreadedKernel.alarm.waitUntil(commitInterval);
+
+	    fsLock.acquire();
+	    commit();
+	    fsLock.release();
+	}
+    }
+
+    private void releasePendingFree() {
+	for (Extent extent : pendingFree)
+	    releaseBlocks(extent.start, extent.length);
+
+	pendingFree.clear();
+    }
+
+    private static int checksum(byte[] buf, int offset, int length) {
+	int sum = 0;
+	for (int i=0; i<length; i++)
+	    sum = sum*31 + buf[offset+i];
+
+	return sum;
+    }
+
+    /**
+     * Encode a file name for the volume. Names are stored in a fixed
+     * character set, so that a volume reads back the same on any host.
+     */
+    private static byte[] encodeName(String name) {
+	return name.getBytes(nameCharset);
+    }
+
+    private static String decodeName(byte[] buf, int offset, int length) {
+	return new String(buf, offset, length, nameCharset);
+    }
+
+    /**
+     * Decode a file table entry.
+     */
+    private static Inode readEntry(byte[] buf, int offset) {
+	int nameLength = Lib.bytesToUnsignedShort(buf, offset);
+	Inode inode = new Inode(decodeName(buf, offset+2, nameLength));
+	offset += 2 + nameLength;
+
+	inode.length = Lib.bytesToInt(buf, offset);
+	int numExtents = Lib.bytesToUnsignedShort(buf, offset+4);
+	offset += 6;
+
+	for (int i=0; i<numExtents; i++) {
+	    inode.extents.add(new Extent(Lib.bytesToInt(buf, offset),
+					 Lib.bytesToInt(buf, offset+4)));
+	    offset += 8;
+	}
+
+	return inode;
+    }
+
+    /**
+     * Encode a file table entry.
+     *
+     * @return	the offset of the first byte after the entry.
+     */
+    private static int writeEntry(byte[] buf, int offset, Inode inode) {
+	byte[] name = encodeName(inode.name);
+
+	Lib.bytesFromShort(buf, offset, (short) name.length);
+	System.arraycopy(name, 0, buf, offset+2, name.length);
+	offset += 2 + name.length;
+
+	Lib.bytesFromInt(buf, offset, inode.length);
+	Lib.bytesFromShort(buf, offset+4, (short) inode.extents.size());
+	offset += 6;
+
+	for (Extent extent : inode.extents) {
+	    Lib.bytesFromInt(buf, offset, extent.start);
+	    Lib.bytesFromInt(buf, offset+4, extent.length);
+	    offset += 8;
+	}
+
+	return offset;
+    }
+
+    /**
+     * Add up to <i>blocks</i> blocks to the end of a file. The last extent of
+     * the file is extended in place if possible; otherwise new extents are
+     * allocated best fit.
+     *
+     * @return	the number of blocks actually added.
+     */
+    private int growFile(Inode inode, int blocks) {
+	int added = 0;
+
+	if (!inode.extents.isEmpty()) {
+	    Extent last = inode.extents.get(inode.extents.size()-1);
+	    int amount = allocateAt(last.start+last.length, blocks);
+	    last.length += amount;
+	    added += amount;
+	}
+
+	while (added < blocks) {
+	    if (!inode.removed &&
+		tableLength + extentEntryLength > tableCapacity())
+		break;
+
+	    Extent extent = allocate(blocks - added);
+	    if (extent == null && !pendingFree.isEmpty()) {
+		// the volume is full of blocks waiting for a commit
+		commit();
+		extent = allocate(blocks - added);
+	    }
+	    if (extent == null)
+		break;
+
+	    inode.extents.add(extent);
+	    if (!inode.removed)
+		tableLength += extentEntryLength;
+	    added += extent.length;
+	}
+
+	return added;
+    }
+
+    /**
+     * Free the blocks of a removed file once its removal is committed.
+     */
+    private void freeFile(Inode inode) {
+	pendingFree.addAll(inode.extents);
+	inode.extents.clear();
+    }
+
+    /**
+     * Allocate a single run of at most <i>blocks</i> blocks. Picks the
+     * smallest free run holding all of them, or the largest free run if none
+     * is big enough.
+     *
+     * @return	the allocated run, or <tt>null</tt> if the volume is full.
+     */
+    private Extent allocate(int blocks) {
+	if (freeBySize.isEmpty())
+	    return null;
+
+	Long key = freeBySize.ceiling(sizeKey(blocks, 0));
+	if (key == null)
+	    key = freeBySize.last();
+
+	int start = (int) (key.longValue() & 0xFFFFFFFFL);
+	int amount = allocateAt(start, blocks);
+
+	return new Extent(start, amount);
+    }
+
+    /**
+     * Allocate up to <i>blocks</i> blocks starting exactly at block
+     * <i>start</i>.
+     *
+     * @return	the number of blocks allocated, which is 0 if <i>start</i> is
+     *		not the start of a free run.
+     */
+    private int allocateAt(int start, int blocks) {
+	Integer length = freeByStart.get(start);
+	if (length == null)
+	    return 0;
+
+	int amount = Math.min(blocks, length.intValue());
+
+	removeFree(start, length.intValue());
+	if (amount < length.intValue())
+	    addFree(start+amount, length.intValue()-amount);
+
+	return amount;
+    }
+
+    /**
+     * Mark a run of blocks in use while rebuilding the free space index.
+     */
+    private void reserveBlocks(int start, int length) {
+	Map.Entry<Integer,Integer> run = freeByStart.floorEntry(start);
+	Lib.assertTrue(run != null);
+
+	int runStart = run.getKey().intValue();
+	int runEnd = runStart + run.getValue().intValue();
+	Lib.assertTrue(start+length <= runEnd, "overlapping extents");
+
+	removeFree(runStart, runEnd-runStart);
+	if (runStart < start)
+	    addFree(runStart, start-runStart);
+	if (start+length < runEnd)
+	    addFree(start+length, runEnd-(start+length));
+    }
+
+    /**
+     * Return a run of blocks to the free space index, coalescing it with the
+     * free runs on either side.
+     */
+    private void releaseBlocks(int start, int length) {
+	Map.Entry<Integer,Integer> prev = freeByStart.floorEntry(start);
+	if (prev != null &&
+	    prev.getKey().intValue() + prev.getValue().intValue() == start) {
+	    removeFree(prev.getKey().intValue(), prev.getValue().intValue());
+	    start = prev.getKey().intValue();
+	    length += prev.getValue().intValue();
+	}
+
+	Integer next = freeByStart.get(start+length);
+	if (next != null) {
+	    removeFree(start+length, next.intValue());
+	    length += next.intValue();
+	}
+
+	addFree(start, length);
+    }
+
+    private void addFree(int start, int length) {
+	freeByStart.put(start, length);
+	freeBySize.add(sizeKey(length, start));
+    }
+
+    private void removeFree(int start, int length) {
+	freeByStart.remove(start);
+	freeBySize.remove(sizeKey(length, start));
+    }
+
+    private static Long sizeKey(int length, int start) {
+	return Long.valueOf(((long) length << 32) | (start & 0xFFFFFFFFL));
+    }
+
+    /**
+     * Transfer bytes between a buffer and the blocks of a file, with one
+     * volume access for each extent touched.
+     *
+     * @return	the number of bytes transferred.
+     */
+    private int transfer(Inode inode, int pos, byte[] buf, int offset,
+			 int length, boolean write) {
+	int done = 0;
+	int extentFirstByte = 0;
+
+	for (Extent extent : inode.extents) {
+	    if (done == length)
+		break;
+
+	    int extentEndByte = extentFirstByte + extent.length*blockSize;
+	    int filePos = pos + done;
+
+	    if (filePos < extentEndByte) {
+		int amount = Math.min(length-done, extentEndByte-filePos);
+		int volumePos = extent.start*blockSize +
+		    (filePos-extentFirstByte);
+
+		if (write) {
+		    if (volume.write(volumePos, buf, offset+done, amount)
+			!= amount)
+			return done;
+		}
+		else {
+		    // blocks never written on the volume read back as zeros
+		    int read = volume.read(volumePos, buf, offset+done, amount);
+		    Arrays.fill(buf, offset+done+Math.max(read, 0),
+				offset+done+amount, (byte) 0);
+		}
+
+		done += amount;
+	    }
+
+	    extentFirstByte = extentEndByte;
+	}
+
+	return done;
+    }
+
+    private int readFile(Inode inode, int pos, byte[] buf, int offset,
+			 int length) {
+	if (pos < 0 || length < 0)
+	    return -1;
+
+	length = Math.min(length, inode.length - pos);
+	if (length <= 0)
+	    return 0;
+
+	return transfer(inode, pos, buf, offset, length, false);
+    }
+
+    private int writeFile(Inode inode, int pos, byte[] buf, int offset,
+			  int length) {
+	if (pos < 0 || length < 0)
+	    return -1;
+
+	// never let a gap expose the old contents of reused blocks
+	if (pos > inode.length) {
+	    int gap = pos - inode.length;
+	    if (writeFile(inode, inode.length, new byte[gap], 0, gap) != gap)
+		return -1;
+	}
+
+	int oldLength = inode.length;
+	int oldBlocks = inode.numBlocks();
+
+	int needed = Lib.divRoundUp(pos+length, blockSize) - inode.numBlocks();
+	if (needed > 0)
+	    growFile(inode, needed);
+
+	int amount = Math.min(length, inode.numBlocks()*blockSize - pos);
+	int written = (amount > 0) ? transfer(inode, pos, buf, offset, amount,
+					      true) : 0;
+
+	if (pos+written > inode.length)
+	    inode.length = pos+written;
+
+	if (!inode.removed &&
+	    (inode.length != oldLength || inode.numBlocks() != oldBlocks))
+	    markDirty(inode.name);
+
+	return written;
+    }
+
+    private class DiskOpenFile extends OpenFileWithPosition {
+	DiskOpenFile(Inode inode) {
+	    super(DiskFileSystem.this, inode.name);
+
+	    this.inode = inode;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (inode == null)
+		return -1;
+
+	    fsLock.acquire();
+	    int amount = readFile(inode, pos, buf, offset, length);
+	    fsLock.release();
+
+	    return amount;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (inode == null)
+		return -1;
+
+	    fsLock.acquire();
+	    int amount = writeFile(inode, pos, buf, offset, length);
+	    fsLock.release();
+
+	    return amount;
+	}
+
+	public int length() {
+	    if (inode == null)
+		return -1;
+
+	    return inode.length;
+	}
+
+	public void close() {
+	    if (inode == null)
+		return;
+
+	    fsLock.acquire();
+
+	    inode.openCount--;
+	    if (inode.removed && inode.openCount == 0)
+		freeFile(inode);
+
+	    fsLock.release();
+
+	    inode = null;
+	}
+
+	private Inode inode;
+    }
+
+    /**
+     * A run of contiguous blocks on the volume.
+     */
+    private static class Extent {
+	Extent(int start, int length) {
+	    this.start = start;
+	    this.length = length;
+	}
+
+	int start;
+	int length;
+    }
+
+    /**
+     * The in-memory state of a file: its name, its length in bytes, and the
+     * extents holding its data, in file order.
+     */
+    private static class Inode {
+	Inode(String name) {
+	    this.name = name;
+	}
+
+	int numBlocks() {
+	    int blocks = 0;
+	    for (Extent extent : extents)
+		blocks += extent.length;
+
+	    return blocks;
+	}
+
+	int entryLength() {
+	    return 2 + encodeName(name).length + 6 +
+		extents.size()*extentEntryLength;
+	}
+
+	String name;
+	int length = 0;
+	ArrayList<Extent> extents = new ArrayList<Extent>();
+
+	int openCount = 0;
+	boolean removed = false;
+    }
+
+    private String volumeName;
+    private OpenFile volume = null;
+
+    private int numBlocks;
+    private int numMetadataBlocks;
+    private int numJournalBlocks;
+
+    private HashMap<String,Inode> directory;
+    /** The number of bytes the file table currently occupies. */
+    private int tableLength;
+
+    /** Free runs of blocks, by starting block. */
+    private TreeMap<Integer,Integer> freeByStart;
+    /** Free runs of blocks, ordered by length and then by starting block. */
+    private TreeSet<Long> freeBySize;
+
+    /** The current journal epoch; bumped by every checkpoint. */
+    private int epoch;
+    /** The offset in the journal at which the next transaction goes. */
+    private int journalTail = 0;
+    /** Names of files whose entries changed in the current transaction. */
+    private LinkedHashSet<String> dirty;
+    /** Blocks freed in the current transaction. */
+    private ArrayList<Extent> pendingFree;
+
+    private int commitInterval;
+    private int groupCommitSize;
+
+    private Lock fsLock;
+
+    private static final int blockSize = Processor.pageSize;
+    private static final int maxNameLength = 256;
+    private static final Charset nameCharset = Charset.forName("UTF-8");
+
+    private static final int volumeMagic = 0x4E465332;
+    private static final int headerLength = 24;
+    private static final int extentEntryLength = 8;
+
+    private static final int commitHeaderLength = 12;
+    private static final byte recordRemoveFile = 0;
+    private static final byte recordSetFile = 1;
+
+    private static final char dbgFS = 'f';
+}
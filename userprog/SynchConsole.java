@@ -4,6 +4,8 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.util.LinkedList;
+
 /**
  * Provides a simple, synchronized interface to the machine's console. The
  * interface can also be accessed through <tt>OpenFile</tt> objects.
@@ -34,19 +36,53 @@ public class SynchConsole {
      * @param	block	<tt>true</tt> if <tt>readByte()</tt> should wait for a
      *			byte if none is available.
      * @return	the next byte read, or -1 if <tt>block</tt> was <tt>false</tt>
-     *		and no byte was available.
+     *		and no byte was available, or if the end of the input was
+     *		reached.
      */
     public int readByte(boolean block) {
+	int value = takeByte(block, true);
+	return (value == endOfInput) ? -1 : value;
+    }
+
+    /**
+     * Take the next byte from the input buffer.
+     *
+     * @param	block		<tt>true</tt> to wait for a byte if none is
+     *				available.
+     * @param	takeEndOfFile	<tt>true</tt> to take an end of input that
+     *				comes before the next byte, or <tt>false</tt>
+     *				to leave it for the next read.
+     * @return	the byte, or <tt>endOfInput</tt> if an end of input was taken,
+     *		or -1 if nothing was available.
+     */
+    private int takeByte(boolean block, boolean takeEndOfFile) {
 	int value;
 	boolean intStatus = Machine.interrupt().disable();	
 	readLock.acquire();
 
-	if (block || charAvailable) {
-	    charAvailable = false;
+	while (inCount == 0 && !atEndOfFile() && block) {
+	    readWaiting = true;
 	    readWait.P();
+	}
 
-	    value = console.readByte();
-	    Lib.assertTrue(value != -1);
+	if (atEndOfFile()) {
+	    value = -1;
+	    if (takeEndOfFile) {
+		endOfFileAt.removeFirst();
+		value = endOfInput;
+	    }
+	}
+	else if (inCount > 0) {
+	    value = inBuffer[inHead] & 0xFF;
+	    inHead = (inHead + 1) % inBuffer.length;
+	    inCount--;
+	    inTaken++;
+
+	    // input held back while the buffer was full can come in now
+	    if (receiveStalled) {
+		receiveStalled = false;
+		receiveInterrupt();
+	    }
 	}
 	else {
 	    value = -1;
@@ -57,6 +93,35 @@ public class SynchConsole {
 	return value;
     }
 
+    /**
+     * Return <tt>true</tt> if an end of input comes before the next byte in
+     * the input buffer. Called with interrupts disabled.
+     */
+    private boolean atEndOfFile() {
+	return !endOfFileAt.isEmpty() && endOfFileAt.getFirst() == inTaken;
+    }
+
+    /**
+     * Select line mode or raw mode input. In line mode, the default, input
+     * is held until a whole line has been typed, backspaces erase the last
+     * character of the line, and reads return at most one line. A Ctrl-D
+     * makes the line typed so far readable without a newline, or, at the
+     * start of a line, marks the end of the input, so that the next read
+     * returns 0. In raw mode, each byte can be read as soon as it arrives.
+     *
+     * @param	lineMode	<tt>true</tt> to select line mode.
+     */
+    public void setLineMode(boolean lineMode) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	// whatever was typed so far becomes readable
+	if (!lineMode)
+	    finishLine();
+	this.lineMode = lineMode;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
     /**
      * Return an <tt>OpenFile</tt> that can be used to read this as a file.
      *
@@ -67,22 +132,133 @@ public class SynchConsole {
     }
 
     private void receiveInterrupt() {
-	charAvailable = true;
-	readWait.V();
+	// leave the byte with the console, and so hold up the host, until
+	// there is room for the line it could finish
+	if (inCount + lineLength + 1 > inBuffer.length) {
+	    receiveStalled = true;
+	    return;
+	}
+
+	int value = console.readByte();
+	Lib.assertTrue(value != -1);
+
+	if (!lineMode) {
+	    line[lineLength++] = (byte) value;
+	    finishLine();
+	}
+	else if (value == '\b') {
+	    if (lineLength > 0)
+		lineLength--;
+	}
+	else if (value == endOfFile) {
+	    if (lineLength == 0)
+		endOfFileAt.add(inTaken + inCount);
+	    finishLine();
+	}
+	else {
+	    line[lineLength++] = (byte) value;
+	    if (value == '\n' || lineLength == line.length)
+		finishLine();
+	}
+    }
+
+    /**
+     * Move the line being typed to the input buffer, where it can be read,
+     * and wake a waiting reader. The input buffer always has room for it.
+     * Called with interrupts disabled.
+     */
+    private void finishLine() {
+	Lib.assertTrue(inCount + lineLength <= inBuffer.length);
+
+	for (int i=0; i<lineLength; i++) {
+	    inBuffer[(inHead + inCount) % inBuffer.length] = line[i];
+	    inCount++;
+	}
+	lineLength = 0;
+
+	if (readWaiting && (inCount > 0 || atEndOfFile())) {
+	    readWaiting = false;
+	    readWait.V();
+	}
     }
 
     /**
-     * Send a byte. Blocks until the send is complete.
+     * Send a byte. The byte is queued in the output buffer, and this blocks
+     * only while the buffer is full.
      *
      * @param	value	the byte to be sent (the upper 24 bits are ignored).
      */
     public void writeByte(int value) {
+	writeBytes(new byte[] { (byte) value }, 0, 1);
+    }
+
+    /**
+     * Send bytes. The bytes are queued in the output buffer, from which the
+     * console sends them in bursts, and this blocks only while the buffer is
+     * full. The bytes are not interleaved with those of another writer.
+     *
+     * @param	buf	the buffer holding the bytes to send.
+     * @param	offset	the first byte to send.
+     * @param	length	the number of bytes to send.
+     */
+    public void writeBytes(byte[] buf, int offset, int length) {
 	writeLock.acquire();
-	console.writeByte(value);
-	writeWait.P();
+	boolean intStatus = Machine.interrupt().disable();
+
+	while (length > 0) {
+	    while (outCount == outBuffer.length) {
+		spaceWaiting = true;
+		writeWait.P();
+	    }
+
+	    // copy as much as fits before the buffer wraps or fills
+	    int tail = (outHead + outCount) % outBuffer.length;
+	    int amount = Math.min(length, Math.min(outBuffer.length - outCount,
+						   outBuffer.length - tail));
+	    System.arraycopy(buf, offset, outBuffer, tail, amount);
+	    outCount += amount;
+	    offset += amount;
+	    length -= amount;
+
+	    if (sending == 0)
+		startSend();
+	}
+
+	Machine.interrupt().restore(intStatus);
 	writeLock.release();
     }
 
+    /**
+     * Wait until everything in the output buffer has been sent.
+     */
+    public void flush() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	while (outCount > 0) {
+	    drainWaiters++;
+	    drainWait.P();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Hand the console the next burst from the output buffer, or just the
+     * next byte if the console cannot send bursts. Called with interrupts
+     * disabled.
+     */
+    private void startSend() {
+	if (console instanceof StandardConsole) {
+	    sending = ((StandardConsole) console)
+		.writeBytes(outBuffer, outHead,
+			    Math.min(outCount, outBuffer.length - outHead));
+	}
+	else {
+	    console.writeByte(outBuffer[outHead]);
+	    sending = 1;
+	}
+    }
+
     /**
      * Return an <tt>OpenFile</tt> that can be used to write this as a file.
      *
@@ -93,16 +269,66 @@ public class SynchConsole {
     }
 
     private void sendInterrupt() {
-	writeWait.V();
+	Lib.assertTrue(sending > 0);
+
+	outHead = (outHead + sending) % outBuffer.length;
+	outCount -= sending;
+	sending = 0;
+
+	if (outCount > 0)
+	    startSend();
+
+	if (spaceWaiting) {
+	    spaceWaiting = false;
+	    writeWait.V();
+	}
+	// any number of threads may be flushing
+	while (drainWaiters > 0 && outCount == 0) {
+	    drainWaiters--;
+	    drainWait.V();
+	}
     }
 
-    private boolean charAvailable = false;
+    /** Input that can be read, <tt>inCount</tt> bytes from
+     *  <tt>inHead</tt> on, wrapping around. */
+    private byte[] inBuffer = new byte[inBufferSize];
+    private int inHead = 0, inCount = 0;
+    private boolean readWaiting = false;
+    /** The number of bytes ever taken from the input buffer. */
+    private long inTaken = 0;
+    /** The positions in the input, counted as for <tt>inTaken</tt>, at
+     *  which an end of input was typed. */
+    private LinkedList<Long> endOfFileAt = new LinkedList<Long>();
+    /** <tt>true</tt> if a received byte was left with the console because
+     *  the input buffer had no room. */
+    private boolean receiveStalled = false;
+    /** The line being typed, in line mode. */
+    private byte[] line = new byte[maxLineLength];
+    private int lineLength = 0;
+    private boolean lineMode = true;
+    private static final int inBufferSize = 1024, maxLineLength = 256;
+    /** Ctrl-D, which the console delivers at the end of its input. */
+    private static final int endOfFile = 0x04;
+    /** What <tt>takeByte()</tt> returns when it takes an end of input. */
+    private static final int endOfInput = -2;
 
     private SerialConsole console;
-    private Lock readLock = new Lock();
-    private Lock writeLock = new Lock();
-    private Semaphore readWait = new Semaphore(0);
-    private Semaphore writeWait = new Semaphore(0);
+    private Lock readLock = new Lock("SynchConsole.readLock");
+    private Lock writeLock = new Lock("SynchConsole.writeLock");
+    private Semaphore readWait = new Semaphore(0, "SynchConsole.readWait");
+    private Semaphore writeWait = new Semaphore(0, "SynchConsole.writeWait");
+    private Semaphore drainWait = new Semaphore(0, "SynchConsole.drainWait");
+
+    /** Bytes waiting to be sent, <tt>outCount</tt> of them from
+     *  <tt>outHead</tt> on, wrapping around. */
+    private byte[] outBuffer = new byte[outBufferSize];
+    private int outHead = 0, outCount = 0;
+    /** The size of the burst the console is sending, or 0 if idle. */
+    private int sending = 0;
+    private boolean spaceWaiting = false;
+    /** The number of threads waiting in <tt>flush()</tt>. */
+    private int drainWaiters = 0;
+    private static final int outBufferSize = 1024;
 
     private class File extends OpenFile {
 	File(boolean canRead, boolean canWrite) {
@@ -120,13 +346,21 @@ public class SynchConsole {
 	    if (!canRead)
 		return 0;
 
+	    // in line mode, a read returns at most one line, and an end of
+	    // input ends the read before it, or reads as end of file itself
 	    int i;
 	    for (i=0; i<length; i++) {
-		int value = SynchConsole.this.readByte(false);
+		int value = takeByte(false, i == 0);
+		if (value == endOfInput)
+		    return 0;
 		if (value == -1)
 		    break;
 		
 		buf[offset+i] = (byte) value;
+		if (lineMode && value == '\n') {
+		    i++;
+		    break;
+		}
 	    }
 
 	    return i;
@@ -136,8 +370,7 @@ public class SynchConsole {
 	    if (!canWrite)
 		return 0;
 	    
-	    for (int i=0; i<length; i++)
-		SynchConsole.this.writeByte(buf[offset+i]);
+	    SynchConsole.this.writeBytes(buf, offset, length);
 	    
 	    return length;
 	}
@@ -1,5 +1,6 @@
 package nachos.userprog;
 
+import java.util.Arrays;
 import java.util.LinkedList;
 import nachos.machine.*;
 import nachos.threads.*;
@@ -23,6 +24,10 @@ public class UserKernel extends ThreadedKernel {
     public void initialize(String[] args) {
 	super.initialize(args);
 
+	// replay the file system journal before anything can use it
+	if (fileSystem instanceof DiskFileSystem)
+	    ((DiskFileSystem) fileSystem).mount();
+
 	console = new SynchConsole(Machine.console());
 	//create physical pages array
 	physicalPages = new Integer[Machine.processor().getNumPhysPages()];
@@ -35,15 +40,23 @@ public class UserKernel extends ThreadedKernel {
 		public void run() { exceptionHandler(); }
 	    });
 	// start semaphore so only one process can assign pages at a time
-	pagesSem = new Semaphore(1);
+	pagesSem = new Semaphore(1, "UserKernel.pagesSem");
+
+	// a page of zeroes shared, read-only, by every page not yet written
+	zeroPage = getFirstFreePhysPage();
+	Arrays.fill(Machine.processor().getMemory(), zeroPage*Processor.pageSize,
+		    (zeroPage+1)*Processor.pageSize, (byte) 0);
     }
 
     /**
-     * Test the console device.
+     * Test the stub file system and the console device.
      */	
     public void selfTest() {
 	super.selfTest();
 
+	if (Machine.stubFileSystem() != null)
+	    StubFileSystem.selfTest();
+
 	System.out.println("Testing the console device. Typed characters");
 	System.out.println("will be echoed until q is typed.");
 
@@ -113,6 +126,12 @@ public class UserKernel extends ThreadedKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	if (fileSystem instanceof DiskFileSystem)
+	    ((DiskFileSystem) fileSystem).sync();
+
+	// don't lose console output still waiting to be sent
+	console.flush();
+
 	super.terminate();
     }
     /**
@@ -136,6 +155,7 @@ public class UserKernel extends ThreadedKernel {
     public static void releasePhysPage(int numPage){
 	pagesSem.P();
     	physicalPages[numPage]=0;
+	freePages++;
 	pagesSem.V();
     }
     /* returns the number of free pages */
@@ -148,6 +168,9 @@ public class UserKernel extends ThreadedKernel {
 	return ret;
     }
 
+    /** The physical page of zeroes shared by pages not yet written. */
+    public static int zeroPage;
+
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
     /** Array representing the physical memory pages. */
@@ -5,6 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 
 import java.io.EOFException;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 
 /**
@@ -27,14 +29,14 @@ public class UserProcess {
 	int numPhysPages = Machine.processor().getNumPhysPages();
 	pageTable = new TranslationEntry[numPhysPages];
 	for (int i=0; i<numPhysPages; i++)
-	    pageTable[i] = new TranslationEntry(i,i, true,false,false,false);
+	    pageTable[i] = new TranslationEntry(i,0, false,false,false,false);
 
 	processID=UserKernel.getNextProcessID();
 	runningProcesses++;
 	exitStatus=-2;
 	children= new LinkedList<UserProcess>();
 	//instantiate open files for this process
-	fileDescriptors = new OpenFile[16];
+	fileDescriptors = new OpenFile[initialFileDescriptors];
 	//always reserves space for stdin and stdout
 	fileDescriptors[0] = UserKernel.console.openForReading();
 	fileDescriptors[1] = UserKernel.console.openForWriting();
@@ -143,26 +145,26 @@ public class UserProcess {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
 	byte[] memory = Machine.processor().getMemory();
-	/*// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;*/
-	    
-	int vpn = Machine.processor().pageFromAddress(vaddr);
-	int addrOffset = Machine.processor().offsetFromAddress(vaddr);
-	// get corresponding ppn from pageTable
-	int ppn = pageTable[vpn].ppn;
-	//obtains paddr
-	int paddr = ppn*pageSize+offset;
-	// updates entry 
-	TranslationEntry entry = pageTable[vpn];
-	entry.used=true;
-	// checks if the paddr is valid 
-	// might need to check if offset goes over the page
-	if(entry.valid!=true || vpn<0 || vpn>numPages )
-		return 0;
+	if (vaddr < 0)
+	    return 0;
+
+	// copy a page at a time, stopping at the first invalid page
+	int amount = 0;
+	while (amount < length) {
+	    int vpn = Machine.processor().pageFromAddress(vaddr+amount);
+	    int addrOffset = Machine.processor().offsetFromAddress(vaddr+amount);
+	    if (vpn >= pageTable.length ||
+		(!pageTable[vpn].valid && !handlePageFault(vpn)))
+		break;
+
+	    TranslationEntry entry = pageTable[vpn];
+	    entry.used = true;
 
-	int amount = Math.min(length, memory.length-paddr);
-	System.arraycopy(memory, paddr, data, offset, amount);
+	    int chunk = Math.min(length-amount, pageSize-addrOffset);
+	    System.arraycopy(memory, entry.ppn*pageSize+addrOffset,
+			     data, offset+amount, chunk);
+	    amount += chunk;
+	}
 
 	return amount;
     }
@@ -200,32 +202,29 @@ public class UserProcess {
 
 	byte[] memory = Machine.processor().getMemory();
 	Lib.debug(dbgProcess,"vaddr:"+vaddr+" offset:"+offset+" length:"+length);
-	/*// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;*/	
-	    
-	// gets page number and offset for the vpn,
-	int vpn = Machine.processor().pageFromAddress(vaddr);
-	int addrOffset = Machine.processor().offsetFromAddress(vaddr);
-	Lib.debug(dbgProcess,"vaddr:"+vaddr+" vpn:"+vpn);
-	// get corresponding ppn from pageTable
-	int ppn = pageTable[vpn].ppn;
-	//obtains paddr
-	int paddr = (ppn*pageSize)+offset;
-	Lib.debug(dbgProcess,"paddr:"+paddr+" ppn:"+ppn);
-	// updates entry 
-	TranslationEntry entry = pageTable[vpn];
-	entry.used=true;
-	entry.dirty=true;
-	// checks if the paddr is valid 
-	// might need to check if offset goes over the page
-	if(entry.readOnly || !entry.valid || vpn<0 || vpn>numPages ){
-		Lib.debug(dbgProcess,"error");
-		return 0;}
-	
-	int amount = Math.min(length, memory.length-vaddr);
-	Lib.debug(dbgProcess,"copying data ");
-	System.arraycopy(data, offset, memory, vaddr, amount);
+	if (vaddr < 0)
+	    return 0;
+
+	// copy a page at a time, stopping at the first invalid or read-only
+	// page
+	int amount = 0;
+	while (amount < length) {
+	    int vpn = Machine.processor().pageFromAddress(vaddr+amount);
+	    int addrOffset = Machine.processor().offsetFromAddress(vaddr+amount);
+	    if (vpn >= pageTable.length ||
+		(!pageTable[vpn].valid && !handlePageFault(vpn)) ||
+		(pageTable[vpn].readOnly && !handleReadOnly(vpn)))
+		break;
+
+	    TranslationEntry entry = pageTable[vpn];
+	    entry.used = true;
+	    entry.dirty = true;
+
+	    int chunk = Math.min(length-amount, pageSize-addrOffset);
+	    System.arraycopy(data, offset+amount,
+			     memory, entry.ppn*pageSize+addrOffset, chunk);
+	    amount += chunk;
+	}
 
 	return amount;
     }
@@ -301,6 +300,9 @@ public class UserProcess {
 	if (!loadSections())
 	    return false;
 
+	// the heap starts out empty, right after the argument page
+	brk = numPages*pageSize;
+
 	// store arguments in last page
 	int entryOffset = (numPages-1)*pageSize;
 	int stringOffset = entryOffset + args.length*4;
@@ -331,10 +333,12 @@ public class UserProcess {
      */
     protected boolean loadSections() {
 	/*
-	 a load fails if the process is bigger than the memory or if it's bigger than the 
-	 free space
+	 a load fails if the sections, stack and argument pages are bigger
+	 than the free space; the stack and argument pages only get a frame
+	 when first written, and a process that then finds none is killed
 	*/
-	if (numPages > Machine.processor().getNumPhysPages() || numPages>UserKernel.getFreePages()) {
+	int sectionPages = numPages-stackPages-1;
+	if (numPages > UserKernel.getFreePages()) {
 	    coff.close();
 	    Lib.debug(dbgProcess, "\tinsufficient physical memory");
 	    return false;
@@ -347,6 +351,7 @@ public class UserProcess {
 	    Lib.debug(dbgProcess, "\tinitializing " + section.getName()
 		      + " section (" + section.getLength() + " pages)");
 
+	    int[] ppns = new int[section.getLength()];
 	    for (int i=0; i<section.getLength(); i++) {
 		int vpn = section.getFirstVPN()+i;
 
@@ -365,21 +370,135 @@ public class UserProcess {
 		entry.vpn=vpn;
 		entry.valid=true;
 		entry.readOnly=section.isReadOnly();
-		section.loadPage(i, ppn);
+		ppns[i]=ppn;
 		Lib.debug(dbgProcess,"TE: "+entry.ppn+" "+entry.vpn);
 	    }
+	    // one contiguous read for the whole section
+	    section.loadPages(0, ppns);
 	}
+
+	// the stack and argument pages start out zeroed
+	growPageTable(numPages);
+	for (int vpn=sectionPages; vpn<numPages; vpn++)
+	    mapZeroPage(vpn);
 	
 	return true;
     }
 
+    /**
+     * Map a virtual page to the shared zero page. The page reads as zeroes
+     * and gets a frame of its own the first time it is written.
+     *
+     * @param	vpn	the virtual page to map.
+     */
+    protected void mapZeroPage(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	entry.ppn=UserKernel.zeroPage;
+	entry.vpn=vpn;
+	entry.valid=true;
+	entry.readOnly=true;
+	entry.used=false;
+	entry.dirty=false;
+    }
+
+    /**
+     * Return <tt>true</tt> if the specified page table entry maps the shared
+     * zero page.
+     */
+    private static boolean isZeroPage(TranslationEntry entry) {
+	return entry.valid && entry.readOnly && entry.ppn == UserKernel.zeroPage;
+    }
+
+    /**
+     * Called when this process writes a read-only page. If the page is mapped
+     * to the shared zero page, give it a zeroed frame of its own.
+     *
+     * @param	vpn	the virtual page that was written.
+     * @return	<tt>true</tt> if the page is now writable.
+     */
+    protected boolean handleReadOnly(int vpn) {
+	if (vpn >= pageTable.length || !isZeroPage(pageTable[vpn]))
+	    return false;
+
+	int ppn = UserKernel.getFirstFreePhysPage();
+	if (ppn == -1) {
+	    Lib.debug(dbgProcess, "\tno free page for zero page " + vpn);
+	    return false;
+	}
+
+	byte[] memory = Machine.processor().getMemory();
+	Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+
+	TranslationEntry entry = pageTable[vpn];
+	entry.ppn=ppn;
+	entry.readOnly=false;
+	invalidateTranslation(vpn);
+	return true;
+    }
+
+    /**
+     * Called after the page table entry for a virtual page changes, so that
+     * any cached copy of the old translation can be dropped. The page table
+     * itself is never cached here.
+     *
+     * @param	vpn	the virtual page whose translation changed.
+     */
+    protected void invalidateTranslation(int vpn) {
+    }
+
+    /**
+     * Return <tt>true</tt> if the specified virtual page is part of this
+     * process's address space.
+     *
+     * @param	vpn	the virtual page.
+     * @return	<tt>true</tt> if the page is in use.
+     */
+    protected boolean isPageInUse(int vpn) {
+	return vpn < pageTable.length && pageTable[vpn].valid;
+    }
+
+    /**
+     * Grow this process's page table to at least the specified number of
+     * entries. The new entries are invalid.
+     *
+     * @param	numEntries	the number of entries the page table needs.
+     */
+    protected void growPageTable(int numEntries) {
+	if (numEntries <= pageTable.length)
+	    return;
+
+	int oldLength = pageTable.length;
+	pageTable = Arrays.copyOf(pageTable, numEntries);
+	for (int i=oldLength; i<numEntries; i++)
+	    pageTable[i] = new TranslationEntry(i,0, false,false,false,false);
+
+	if (UserKernel.currentProcess() == this &&
+	    !Machine.processor().hasTLB())
+	    Machine.processor().setPageTable(pageTable);
+    }
+
+    /**
+     * Called when this process touches a virtual page whose page table entry
+     * is invalid, either from user mode or through
+     * <tt>readVirtualMemory()</tt> and <tt>writeVirtualMemory()</tt>. A
+     * subclass that loads pages lazily can make the page valid here.
+     *
+     * @param	vpn	the virtual page that was touched.
+     * @return	<tt>true</tt> if the page is now valid.
+     */
+    protected boolean handlePageFault(int vpn) {
+	return false;
+    }
+
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
 	for(int i=0;i<numPages;i++){
 		TranslationEntry entry = pageTable[i];
-		UserKernel.releasePhysPage(entry.ppn);
+		// pages never written share the zero page
+		if(entry.valid && !isZeroPage(entry))
+		    UserKernel.releasePhysPage(entry.ppn);
 		entry.valid=false;
 	}
 	coff.close();
@@ -415,8 +534,9 @@ public class UserProcess {
     private int handleHalt() {
 	Lib.debug(dbgProcess,"handleHalt() ");
 	if(processID==0){
-		Machine.halt();
-		Lib.assertNotReached("Machine.halt() did not halt machine!");}
+		// lets the kernel flush its state before the machine halts
+		Kernel.kernel.terminate();
+		Lib.assertNotReached("Kernel.terminate() did not halt machine!");}
 
 	return -1;
     }
@@ -439,7 +559,7 @@ public class UserProcess {
 	}
 	for(OpenFile file : fileDescriptors)
 		if(file!=null)
-		file.close();		
+		releaseFile(file);
 	unloadSections();
 	exitStatus=a0;
 	//signal process waiting? might just use UThread join to handle
@@ -535,35 +655,35 @@ public class UserProcess {
 	creates a new file 
 
 	@param a0 is the pointer to the file name
+	@param sizeHint is the expected size of the file, or 0 if unknown;
+	       a file system that supports it preallocates that much space
 
 	@returns file descriptor if create is successful, -1 if there's an error
     */
-    private int handleCreat(int a0){
+    private int handleCreat(int a0, int sizeHint){
 	/*sanity checks, first address must be in range
 	  second filename must be a valid value
-	  finally there must be less than 16 files open for the process 
+	  the descriptor table grows as needed
 	  must change this one, after mem add checks*/
 	Lib.debug(dbgProcess,"handleCreate()");
 	if(a0<0)
 		return -1;
 	String filename = readVirtualMemoryString(a0,maxStringSize);
 	Lib.debug(dbgProcess,"filename"+filename);
-	int openFD;
-	for(openFD =2;openFD<16;openFD++){
-	    if(fileDescriptors[openFD]==null)
-		break;
-	}
 	// returns -1 if any condition is true, might need to change for 
 	// debug purposes
-	if (filename == null || openFD==16)
+	if (filename == null)
 	    return -1;
 	// calls filesystem to handle a new file creation
-	OpenFile file  = ThreadedKernel.fileSystem.open(filename,true);
-	if(file!=null)
-		fileDescriptors[openFD]=file;
+	OpenFile file;
+	if (sizeHint > 0 && ThreadedKernel.fileSystem instanceof DiskFileSystem)
+	    file = ((DiskFileSystem) ThreadedKernel.fileSystem)
+		.open(filename, true, sizeHint);
 	else
+	    file = ThreadedKernel.fileSystem.open(filename,true);
+	if(file==null)
 		return -1;
-	return openFD;
+	return allocateFileDescriptor(2,file);
 	
     }
     /*
@@ -577,32 +697,23 @@ public class UserProcess {
     private int handleOpen(int a0){
 	/*sanity checks, first address must be in range
 	  second filename must be a valid value
-	  finally there must be less than 16 files open for the process 
+	  the descriptor table grows as needed
 	  must change this one, after mem add checks*/
 	Lib.debug(dbgProcess,"handleOpen() ");
 	if(a0<0)
 		return -1;
 	String filename = readVirtualMemoryString(a0,maxStringSize);
 	Lib.debug(dbgProcess,"Open filename "+filename);
-	int openFD;
-	for(openFD =0;openFD<16;openFD++){
-	    if(fileDescriptors[openFD]==null)
-		break;
-	}
 	// returns -1 if any condition is true, might need to change for debug purposes
-	if (filename == null || openFD==16)
+	if (filename == null)
 	    return -1;
 	// calls filesystem to handle a new file opening
 	OpenFile file  = ThreadedKernel.fileSystem.open(filename,false);
-	Lib.debug(dbgProcess," file "+file.getName()+" FD: "+openFD);
-	if(file!=null){
-		fileDescriptors[openFD]=file;
-		return openFD;
-	}
-	else
+	if(file==null)
 		return -1;
-
-	
+	int openFD = allocateFileDescriptor(0,file);
+	Lib.debug(dbgProcess," file "+file.getName()+" FD: "+openFD);
+	return openFD;
     }
 
     /*
@@ -620,11 +731,11 @@ public class UserProcess {
 	// returns -1 if buffer is at invalid address
 	if(a1<0)
 	    return -1;
-	// returns -1 if file descriptor is out of range or if size to be read is less than  0
-	if(a0<0 || a0>15 || a2<0)	
+	// returns -1 if size to be read is less than  0
+	if(a2<0)	
 	    return -1;
 	// if file to be read isn't part of the process' fileDescriptors return -1 	
-	if(fileDescriptors[a0] == null)
+	if(getOpenFile(a0) == null)
 	    return -1;
 	Lib.debug(dbgProcess,"FD:"+a0);
 	Lib.debug(dbgProcess,"Buffer:"+a1);
@@ -658,11 +769,11 @@ public class UserProcess {
 	if(a1<0){
 	    Lib.debug(dbgProcess,"invalid file descriptor");
 	    return -1;}
-	// returns -1 if file descriptor is out of range or if size to be read is less than  0
-	if(a0<0 || a0>15 || a2<0)	
+	// returns -1 if size to be written is less than  0
+	if(a2<0)	
 	    return -1;
 	// if file to be written isn't part of the process' fileDescriptors return -1 	
-	if(fileDescriptors[a0] == null){
+	if(getOpenFile(a0) == null){
             Lib.debug(dbgProcess,"file descriptor is not open, exiting...");
 	    return -1;
 	}
@@ -675,6 +786,190 @@ public class UserProcess {
 	return retBytes;
 
     }
+    /*
+	readIovecs(int a0, int a1)
+	reads an array of struct iovec { void *base; int len; } from user
+	memory in a single copy
+
+	@param a0 is the pointer to the iovec array
+	@param a1 is the number of iovecs
+
+	@returns base, len pairs, or null if the array is invalid
+    */
+    private int[] readIovecs(int a0, int a1){
+	if(a0<0 || a1<0 || a1>maxIovecs)
+	    return null;
+	byte[] bytes = new byte[a1*iovecSize];
+	if(readVirtualMemory(a0,bytes)<bytes.length)
+	    return null;
+	int[] iov = new int[a1*2];
+	long total = 0;
+	for(int i=0;i<iov.length;i++){
+	    iov[i]=Lib.bytesToInt(bytes,i*4);
+	    // every length must be non-negative and the total must fit in an int
+	    if(i%2==1 && (iov[i]<0 || (total+=iov[i])>Integer.MAX_VALUE))
+		return null;
+	}
+	return iov;
+    }
+    /*
+	copyIovecs(int[] iov, int[] cursor, byte[] buffer, int length,
+		   boolean toUser)
+	copies the next length bytes described by the iovecs between user
+	memory and the start of buffer
+
+	@param iov is the base, len pairs returned by readIovecs
+	@param cursor is the iovec index and the offset in that iovec to
+	       start at; it is advanced past the bytes copied
+	@param buffer is the kernel buffer
+	@param length is the number of bytes to copy
+	@param toUser is true to copy from buffer to user memory
+
+	@returns number of bytes copied, less than length if an address is
+		 invalid
+    */
+    private int copyIovecs(int[] iov, int[] cursor, byte[] buffer,
+			   int length, boolean toUser){
+	int copied=0;
+	while(copied<length){
+	    int base=iov[cursor[0]*2], len=iov[cursor[0]*2+1];
+	    int amount=Math.min(len-cursor[1],length-copied);
+	    int ret = toUser ?
+		writeVirtualMemory(base+cursor[1],buffer,copied,amount) :
+		readVirtualMemory(base+cursor[1],buffer,copied,amount);
+	    copied+=ret;
+	    cursor[1]+=ret;
+	    if(ret<amount)
+		break;
+	    if(cursor[1]==len){
+		cursor[0]++;
+		cursor[1]=0;
+	    }
+	}
+	return copied;
+    }
+    /*
+	handleReadv(int a0, int a1, int a2), syscall
+	reads a0 file content into the a2 buffers described by the a1 iovecs,
+	using a single read of the file for every maxIovecBuffer bytes
+
+	@param a0 is the file descriptor 
+	@param a1 is the pointer to the iovec array
+	@param a2 is the number of iovecs
+
+	@returns number of bytes read if successful, -1 if there's an error
+    */
+    private int handleReadv(int a0, int a1, int a2){
+	Lib.debug(dbgProcess,"handleReadv() ");
+	OpenFile file = getOpenFile(a0);
+	if(file==null)
+	    return -1;
+	int[] iov = readIovecs(a1,a2);
+	if(iov==null)
+	    return -1;
+	int total=0;
+	for(int i=1;i<iov.length;i+=2)
+	    total+=iov[i];
+	// read a bounded chunk at a time, then scatter it
+	byte[] buffer = new byte[Math.min(total,maxIovecBuffer)];
+	int[] cursor = new int[2];
+	int done=0;
+	while(done<total){
+	    int amount = Math.min(buffer.length,total-done);
+	    int read = file.read(buffer,0,amount);
+	    if(read<0)
+		return (done>0) ? done : -1;
+	    int copied = copyIovecs(iov,cursor,buffer,read,true);
+	    done+=copied;
+	    // stop at the end of the file, or of what a stream has ready
+	    if(copied<amount)
+		break;
+	}
+	return done;
+    }
+    /*
+	handleWritev(int a0, int a1, int a2), syscall
+	writes the a2 buffers described by the a1 iovecs to a0 file,
+	using a single write of the file for every maxIovecBuffer bytes
+
+	@param a0 is the file descriptor 
+	@param a1 is the pointer to the iovec array
+	@param a2 is the number of iovecs
+
+	@returns number of bytes written if successful, -1 if there's an error
+		 before anything is written
+    */
+    private int handleWritev(int a0, int a1, int a2){
+	Lib.debug(dbgProcess,"handleWritev() ");
+	OpenFile file = getOpenFile(a0);
+	if(file==null)
+	    return -1;
+	int[] iov = readIovecs(a1,a2);
+	if(iov==null)
+	    return -1;
+	int total=0;
+	for(int i=1;i<iov.length;i+=2)
+	    total+=iov[i];
+	// gather a bounded chunk at a time, then write it
+	byte[] buffer = new byte[Math.min(total,maxIovecBuffer)];
+	int[] cursor = new int[2];
+	int done=0;
+	while(done<total){
+	    int amount = Math.min(buffer.length,total-done);
+	    int gathered = copyIovecs(iov,cursor,buffer,amount,false);
+	    int written = (gathered>0) ? file.write(buffer,0,gathered) : 0;
+	    if(written<0)
+		return (done>0) ? done : -1;
+	    done+=written;
+	    // a short write has still changed the file, so report it
+	    if(written<amount)
+		return (done>0 || gathered==amount) ? done : -1;
+	}
+	return done;
+    }
+    /*
+	handleSbrk(int a0), syscall
+	moves the end of the heap by a0 bytes; new heap pages share the zero
+	page until they are first written
+
+	@param a0 is the number of bytes to grow the heap by, negative to shrink
+
+	@returns the previous end of the heap if successful, -1 if there's an error
+    */
+    private int handleSbrk(int a0){
+	Lib.debug(dbgProcess,"handleSbrk() "+a0);
+	long newBrk = (long) brk + a0;
+	if(newBrk < heapStart() || newBrk > (long) maxVirtualPages*pageSize)
+	    return -1;
+	int newPages = (int) ((newBrk + pageSize - 1) / pageSize);
+	// growing must not run into anything else in the address space
+	for(int vpn=numPages;vpn<newPages;vpn++)
+	    if(isPageInUse(vpn))
+		return -1;
+	growPageTable(newPages);
+	for(int vpn=numPages;vpn<newPages;vpn++)
+	    mapZeroPage(vpn);
+	// shrinking frees the pages past the new end
+	for(int vpn=newPages;vpn<numPages;vpn++){
+	    TranslationEntry entry = pageTable[vpn];
+	    if(!isZeroPage(entry))
+		UserKernel.releasePhysPage(entry.ppn);
+	    entry.valid=false;
+	    invalidateTranslation(vpn);
+	}
+	numPages=newPages;
+	int oldBrk = brk;
+	brk = (int) newBrk;
+	return oldBrk;
+    }
+    /*
+	heapStart()
+	@returns the address of the start of the heap, right after the
+	argument page
+    */
+    private int heapStart(){
+	return (initialSP/pageSize+1)*pageSize;
+    }
     /*
         handleClose(), syscall    
         closes file asociated with the fileDescriptor
@@ -686,16 +981,14 @@ public class UserProcess {
     	//TODO flush changes to file before closing
     	// checks if it's a valid file descriptor
 	Lib.debug(dbgProcess,"handleClose() ");
-	if(a0>15 || a0<0)
-		return -1;
 	// checks if it exists
-	if(fileDescriptors[a0]==null)
+	if(getOpenFile(a0)==null)
 		return -1;
 	// if it's valid fd and exists, closes the fd
 	Lib.debug(dbgProcess," file "+fileDescriptors[a0].getName());
 	OpenFile file = fileDescriptors[a0];
 	fileDescriptors[a0]=null;
-	file.close();
+	releaseFile(file);
 	
 	return 0;
     }
@@ -715,7 +1008,7 @@ public class UserProcess {
 	Lib.debug(dbgProcess,"unlink "+name);
     	OpenFile file=null;
     	int i=-1;
-    	for(int j=0;j<16;j++){
+    	for(int j=0;j<fileDescriptors.length;j++){
     	    file = fileDescriptors[j];
     	    if(file!=null && file.getName().equals(name)){
 	    	Lib.debug(dbgProcess,"file "+fileDescriptors[j].getName()+" is open, can't unlink");
@@ -732,6 +1025,73 @@ public class UserProcess {
     	ThreadedKernel.fileSystem.remove(name);
     	return 0;
     }
+    /**
+     * Install an open file in the lowest free file descriptor not below
+     * <i>first</i>, doubling the size of the descriptor table if it is full.
+     *
+     * @param	first	the lowest file descriptor that may be used.
+     * @param	file	the file to install.
+     * @return	the file descriptor referring to <i>file</i>.
+     */
+    protected int allocateFileDescriptor(int first, OpenFile file) {
+	int fd;
+	for (fd=first; fd<fileDescriptors.length; fd++) {
+	    if (fileDescriptors[fd] == null)
+		break;
+	}
+
+	if (fd == fileDescriptors.length) {
+	    OpenFile[] table = new OpenFile[fileDescriptors.length*2];
+	    System.arraycopy(fileDescriptors, 0, table, 0,
+			     fileDescriptors.length);
+	    fileDescriptors = table;
+	}
+
+	fileDescriptors[fd] = file;
+	return fd;
+    }
+
+    /**
+     * Take another reference to an open file, so that it stays open when its
+     * file descriptor is closed, until the reference is released.
+     *
+     * @param	file	the open file.
+     */
+    protected void holdFile(OpenFile file) {
+	Integer holds = fileHolds.get(file);
+	fileHolds.put(file, (holds == null) ? 1 : holds+1);
+    }
+
+    /**
+     * Release a reference to an open file, from a file descriptor or from
+     * <tt>holdFile()</tt>, and close the file if it was the last one.
+     *
+     * @param	file	the open file.
+     */
+    protected void releaseFile(OpenFile file) {
+	Integer holds = fileHolds.get(file);
+	if (holds == null)
+	    file.close();
+	else if (holds == 1)
+	    fileHolds.remove(file);
+	else
+	    fileHolds.put(file, holds-1);
+    }
+
+    /**
+     * Return the file referred to by a file descriptor.
+     *
+     * @param	fd	the file descriptor.
+     * @return	the open file, or <tt>null</tt> if <i>fd</i> is out of range or
+     *		not in use.
+     */
+    protected OpenFile getOpenFile(int fd) {
+	if (fd < 0 || fd >= fileDescriptors.length)
+	    return null;
+
+	return fileDescriptors[fd];
+    }
+
     // Syscall constants 
     private static final int
         syscallHalt = 0,
@@ -743,7 +1103,11 @@ public class UserProcess {
 	syscallRead = 6,
 	syscallWrite = 7,
 	syscallClose = 8,
-	syscallUnlink = 9;
+	syscallUnlink = 9,
+	syscallReadv = 13,
+	syscallWritev = 14,
+	syscallSbrk = 16,
+	syscallCreateSized = 18;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -764,6 +1128,13 @@ public class UserProcess {
      *								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  readv(int fd, struct iovec *iov,
+     *				  int iovcnt);</tt></td></tr>
+     * <tr><td>14</td><td><tt>int  writev(int fd, struct iovec *iov,
+     *				   int iovcnt);</tt></td></tr>
+     * <tr><td>16</td><td><tt>void *sbrk(int increment);</tt></td></tr>
+     * <tr><td>18</td><td><tt>int  creatsized(char *name, int size);
+     *								</tt></td></tr>
      * </table>
      * 
      * @param	syscall	the syscall number.
@@ -787,7 +1158,7 @@ public class UserProcess {
 	case syscallJoin:
 	    return handleJoin(a0,a1);
 	case syscallCreate://syscall 4
-	    return handleCreat(a0);
+	    return handleCreat(a0,0);
 	case syscallOpen://syscall 5
 	    return handleOpen(a0);
 	case syscallRead://syscall 6
@@ -798,6 +1169,14 @@ public class UserProcess {
 	    return handleClose(a0);
 	case syscallUnlink://syscall 9
 	    return handleUnlink(a0);
+	case syscallReadv://syscall 13
+	    return handleReadv(a0,a1,a2);
+	case syscallWritev://syscall 14
+	    return handleWritev(a0,a1,a2);
+	case syscallSbrk://syscall 16
+	    return handleSbrk(a0);
+	case syscallCreateSized://syscall 18
+	    return handleCreat(a0,a1);
 	default:
 	    Lib.debug(dbgProcess, "Unknown syscall " + syscall);
 	    Lib.assertNotReached("Unknown system call!");
@@ -817,6 +1196,19 @@ public class UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionReadOnly:
+	    // a first write to a page still sharing the zero page
+	    int vpn = Processor.pageFromAddress(
+			processor.readRegister(Processor.regBadVAddr));
+	    if (handleReadOnly(vpn))
+		break;
+	    // out of memory, or a write to code: only this process dies
+	    Lib.debug(dbgProcess, "Write to read-only page " + vpn +
+		      ", killing process");
+	    handleExit(killedStatus);
+	    Lib.assertNotReached();
+	    break;
+
 	case Processor.exceptionSyscall:
 	    int result = handleSyscall(processor.readRegister(Processor.regV0),
 				       processor.readRegister(Processor.regA0),
@@ -836,8 +1228,21 @@ public class UserProcess {
     }
 
 
-    // the files this process has opened, max 16
+    // the files this process has opened, grows as needed
     protected OpenFile[] fileDescriptors;
+    /** The number of references to each open file beyond the first. */
+    private HashMap<OpenFile,Integer> fileHolds =
+	new HashMap<OpenFile,Integer>();
+    /** The exit status of a process killed by an exception. */
+    private static final int killedStatus = -1;
+    /** The most iovecs a single readv or writev can take. */
+    private static final int maxIovecs = 1024;
+    /** The size of a struct iovec in user memory. */
+    private static final int iovecSize = 8;
+    /** The most bytes readv or writev buffers in the kernel at once. */
+    private static final int maxIovecBuffer = 16*Processor.pageSize;
+    /** The initial size of the file descriptor table. */
+    protected static final int initialFileDescriptors = 16;
     /** The program being run by this process. */
     protected Coff coff;
 
@@ -845,6 +1250,10 @@ public class UserProcess {
     protected TranslationEntry[] pageTable;
     /** The number of contiguous pages occupied by the program. */
     protected int numPages;
+    /** The end of the heap, moved by <tt>sbrk()</tt>. */
+    private int brk;
+    /** The highest virtual page the address space can reach. */
+    protected static final int maxVirtualPages = 0x10000;
 
     /** The number of pages in the program's stack. */
     protected final int stackPages = 8;
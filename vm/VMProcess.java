@@ -5,6 +5,9 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+import java.util.LinkedList;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -22,6 +25,11 @@ public class VMProcess extends UserProcess {
      */
     public void saveState() {
 	super.saveState();
+
+	if (Machine.processor().hasTLB()) {
+	    for (int i=0; i<Machine.processor().getTLBSize(); i++)
+		flushTLBEntry(i);
+	}
     }
 
     /**
@@ -29,7 +37,33 @@ public class VMProcess extends UserProcess {
      * <tt>UThread.restoreState()</tt>.
      */
     public void restoreState() {
-	super.restoreState();
+	if (!Machine.processor().hasTLB()) {
+	    super.restoreState();
+	    return;
+	}
+
+	// the TLB may still hold another process's translations
+	for (int i=0; i<Machine.processor().getTLBSize(); i++)
+	    Machine.processor().writeTLBEntry(i, new TranslationEntry());
+    }
+
+    /**
+     * Copy the used and dirty bits of a TLB entry back into the page table,
+     * and invalidate the TLB entry.
+     *
+     * @param	i	the TLB entry to flush.
+     */
+    private void flushTLBEntry(int i) {
+	TranslationEntry tlbEntry = Machine.processor().readTLBEntry(i);
+	if (!tlbEntry.valid)
+	    return;
+
+	TranslationEntry entry = pageTable[tlbEntry.vpn];
+	entry.used |= tlbEntry.used;
+	entry.dirty |= tlbEntry.dirty;
+
+	tlbEntry.valid = false;
+	Machine.processor().writeTLBEntry(i, tlbEntry);
     }
 
     /**
@@ -46,9 +80,258 @@ public class VMProcess extends UserProcess {
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
+	while (!mappings.isEmpty())
+	    unmap(mappings.getFirst());
+
 	super.unloadSections();
     }    
 
+    /**
+     * Return <tt>true</tt> if the specified virtual page is loaded or mapped.
+     *
+     * @param	vpn	the virtual page.
+     * @return	<tt>true</tt> if the page is in use.
+     */
+    protected boolean isPageInUse(int vpn) {
+	return super.isPageInUse(vpn) || findMapping(vpn) != null;
+    }
+
+    /**
+     * Drop any TLB entry for the specified virtual page.
+     *
+     * @param	vpn	the virtual page whose translation changed.
+     */
+    protected void invalidateTranslation(int vpn) {
+	if (!Machine.processor().hasTLB() || UserKernel.currentProcess() != this)
+	    return;
+
+	for (int i=0; i<Machine.processor().getTLBSize(); i++) {
+	    if (Machine.processor().readTLBEntry(i).vpn == vpn)
+		flushTLBEntry(i);
+	}
+    }
+
+    /**
+     * Find the mapping that covers the specified virtual page.
+     *
+     * @param	vpn	the virtual page.
+     * @return	the mapping, or <tt>null</tt> if the page is not mapped.
+     */
+    private Mapping findMapping(int vpn) {
+	for (Mapping mapping : mappings) {
+	    if (vpn >= mapping.firstVPN &&
+		vpn < mapping.firstVPN + mapping.numPages)
+		return mapping;
+	}
+
+	return null;
+    }
+
+    /**
+     * Fault in a page of a mapped file. The page is read from the file into a
+     * free physical page, with any part past the end of the file zeroed.
+     *
+     * @param	vpn	the virtual page that was touched.
+     * @return	<tt>true</tt> if the page is now valid.
+     */
+    protected boolean handlePageFault(int vpn) {
+	Mapping mapping = findMapping(vpn);
+	if (mapping == null)
+	    return false;
+
+	int ppn = UserKernel.getFirstFreePhysPage();
+	if (ppn == -1) {
+	    Lib.debug(dbgVM, "\tno free page for mapped page " + vpn);
+	    return false;
+	}
+
+	Lib.debug(dbgVM, "\tfaulting in mapped page " + vpn);
+
+	byte[] memory = Machine.processor().getMemory();
+	int pos = (vpn - mapping.firstVPN) * pageSize;
+	int amount = mapping.file.read(pos, memory, ppn*pageSize,
+				       Math.min(pageSize, mapping.length - pos));
+	if (amount < 0)
+	    amount = 0;
+	Arrays.fill(memory, ppn*pageSize + amount, (ppn+1)*pageSize,
+		    (byte) 0);
+
+	TranslationEntry entry = pageTable[vpn];
+	entry.ppn = ppn;
+	entry.valid = true;
+	entry.readOnly = false;
+	entry.used = false;
+	entry.dirty = false;
+
+	return true;
+    }
+
+    /**
+     * Remove a mapping, writing its dirty pages back to the file and freeing
+     * its physical pages.
+     *
+     * @param	mapping	the mapping to remove.
+     */
+    private void unmap(Mapping mapping) {
+	// pick up dirty bits the TLB has not written back yet
+	if (Machine.processor().hasTLB() && UserKernel.currentProcess() == this) {
+	    for (int i=0; i<Machine.processor().getTLBSize(); i++) {
+		int vpn = Machine.processor().readTLBEntry(i).vpn;
+		if (vpn >= mapping.firstVPN &&
+		    vpn < mapping.firstVPN + mapping.numPages)
+		    flushTLBEntry(i);
+	    }
+	}
+
+	byte[] memory = Machine.processor().getMemory();
+	for (int i=0; i<mapping.numPages; i++) {
+	    TranslationEntry entry = pageTable[mapping.firstVPN + i];
+	    if (!entry.valid)
+		continue;
+
+	    if (entry.dirty) {
+		int pos = i * pageSize;
+		mapping.file.write(pos, memory, entry.ppn*pageSize,
+				   Math.min(pageSize, mapping.length - pos));
+	    }
+
+	    UserKernel.releasePhysPage(entry.ppn);
+	    entry.valid = false;
+	    entry.used = false;
+	    entry.dirty = false;
+	}
+
+	mappings.remove(mapping);
+	releaseFile(mapping.file);
+    }
+
+    /*
+	handleMmap(int a0, int a1), syscall
+	maps the whole of a0 file at address a1; pages are read from the file
+	when first touched and dirty pages are written back on munmap or exit
+
+	@param a0 is the file descriptor
+	@param a1 is the page-aligned address to map the file at
+
+	@returns the length of the file if successful, -1 if there's an error
+	or the file is empty
+    */
+    private int handleMmap(int a0, int a1) {
+	Lib.debug(dbgVM, "handleMmap()");
+	OpenFile file = getOpenFile(a0);
+	if (file == null || a1 <= 0 ||
+	    Processor.offsetFromAddress(a1) != 0)
+	    return -1;
+
+	// an empty file would have no pages for munmap to find
+	int length = file.length();
+	if (length <= 0)
+	    return -1;
+
+	int firstVPN = Processor.pageFromAddress(a1);
+	int numPages = (length + pageSize - 1) / pageSize;
+	if (numPages > maxVirtualPages - firstVPN)
+	    return -1;
+
+	// the range must not overlap loaded pages or another mapping
+	for (int vpn=firstVPN; vpn<firstVPN+numPages; vpn++) {
+	    if (isPageInUse(vpn))
+		return -1;
+	}
+
+	// the mapping holds the file open after its descriptor is closed
+	holdFile(file);
+
+	growPageTable(firstVPN + numPages);
+	mappings.add(new Mapping(file, firstVPN, numPages, length));
+
+	return length;
+    }
+
+    /*
+	handleMunmap(int a0), syscall
+	removes the mapping that starts at address a0, writing back its dirty
+	pages
+
+	@param a0 is the address the file was mapped at
+
+	@returns 0 if successful, -1 if there's an error
+    */
+    private int handleMunmap(int a0) {
+	Lib.debug(dbgVM, "handleMunmap()");
+	if (a0 <= 0 || Processor.offsetFromAddress(a0) != 0)
+	    return -1;
+
+	Mapping mapping = findMapping(Processor.pageFromAddress(a0));
+	if (mapping == null || mapping.firstVPN != a0 / pageSize)
+	    return -1;
+
+	unmap(mapping);
+	return 0;
+    }
+
+    private static final int
+	syscallMmap = 10,
+	syscallMunmap = 15;
+
+    /**
+     * Handle a syscall exception. Called by <tt>handleException()</tt>. The
+     * <i>syscall</i> argument identifies which syscall the user executed:
+     *
+     * <table>
+     * <tr><td>syscall#</td><td>syscall prototype</td></tr>
+     * <tr><td>10</td><td><tt>int  mmap(int fd, char *address);</tt></td></tr>
+     * <tr><td>15</td><td><tt>int  munmap(char *address);</tt></td></tr>
+     * </table>
+     * 
+     * @param	syscall	the syscall number.
+     * @param	a0	the first syscall argument.
+     * @param	a1	the second syscall argument.
+     * @param	a2	the third syscall argument.
+     * @param	a3	the fourth syscall argument.
+     * @return	the value to be returned to the user.
+     */
+    public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+	switch (syscall) {
+	case syscallMmap:
+	    return handleMmap(a0, a1);
+	case syscallMunmap:
+	    return handleMunmap(a0);
+	default:
+	    return super.handleSyscall(syscall, a0, a1, a2, a3);
+	}
+    }
+
+    /**
+     * Handle a TLB miss by loading the page table entry for the missing page
+     * into the TLB, faulting the page in first if needed.
+     *
+     * @param	vaddr	the address that missed.
+     * @return	<tt>true</tt> if the TLB now maps the page.
+     */
+    private boolean handleTLBMiss(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vaddr < 0 || vpn >= pageTable.length ||
+	    (!pageTable[vpn].valid && !handlePageFault(vpn)))
+	    return false;
+
+	// replace an invalid entry if there is one, else the next in turn
+	int tlbSize = Machine.processor().getTLBSize();
+	int victim = -1;
+	for (int i=0; i<tlbSize && victim == -1; i++) {
+	    if (!Machine.processor().readTLBEntry(i).valid)
+		victim = i;
+	}
+	if (victim == -1) {
+	    victim = nextVictim;
+	    nextVictim = (nextVictim + 1) % tlbSize;
+	    flushTLBEntry(victim);
+	}
+
+	Machine.processor().writeTLBEntry(victim, pageTable[vpn]);
+	return true;
+    }
+
     /**
      * Handle a user exception. Called by
      * <tt>UserKernel.exceptionHandler()</tt>. The
@@ -61,11 +344,45 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	    // retry the instruction once the TLB maps the page
+	    if (!handleTLBMiss(processor.readRegister(Processor.regBadVAddr)))
+		super.handleException(cause);
+	    break;
+	case Processor.exceptionPageFault:
+	    int vaddr = processor.readRegister(Processor.regBadVAddr);
+	    if (vaddr < 0 ||
+		!handlePageFault(Processor.pageFromAddress(vaddr)))
+		super.handleException(cause);
+	    break;
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
+
+    /**
+     * A file mapped into this process's address space.
+     */
+    private static class Mapping {
+	Mapping(OpenFile file, int firstVPN, int numPages, int length) {
+	    this.file = file;
+	    this.firstVPN = firstVPN;
+	    this.numPages = numPages;
+	    this.length = length;
+	}
+
+	OpenFile file;
+	int firstVPN;
+	int numPages;
+	int length;
+    }
+
+    /** The files mapped into this process. */
+    private LinkedList<Mapping> mappings = new LinkedList<Mapping>();
+    /** The next TLB entry to replace when none is free. */
+    private int nextVictim = 0;
+
 	
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';